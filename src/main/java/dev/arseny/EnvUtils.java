@@ -0,0 +1,57 @@
+package dev.arseny;
+
+import org.jboss.logging.Logger;
+
+public class EnvUtils {
+    private static final Logger LOG = Logger.getLogger(EnvUtils.class);
+
+    // Returns the value of a setting, looked up first as a system property and then as an environment variable.
+    public static String getString(String name, String defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            value = System.getenv(name);
+        }
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
+    public static long getLong(String name, long defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            LOG.warn("Invalid numeric value for " + name + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static double getDouble(String name, double defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            LOG.warn("Invalid numeric value for " + name + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static int getInt(String name, int defaultValue) {
+        return (int) getLong(name, defaultValue);
+    }
+
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value);
+    }
+}
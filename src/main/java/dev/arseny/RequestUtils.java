@@ -2,27 +2,55 @@ package dev.arseny;
 
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.ObjectWriter;
 import dev.arseny.model.*;
 import org.jboss.logging.Logger;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Arrays;
 import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 import java.util.stream.Collectors;
 
 public class RequestUtils {
     private static final Logger LOG = Logger.getLogger(RequestUtils.class);
 
     static ObjectWriter writer = new ObjectMapper().writerFor(ErrorResponse.class);
-    static ObjectWriter queryResponseWriter = new ObjectMapper().writerFor(QueryResponse.class);
+    // Has an ObjectMapper as codec, so generators can write facets and other nested values as objects.
+    static JsonFactory jsonFactory = new ObjectMapper().getFactory();
     static ObjectReader indexRequestReader = new ObjectMapper().readerFor(IndexRequest.class);
     static ObjectReader deleteIndexRequestReader = new ObjectMapper().readerFor(DeleteIndexRequest.class);
     static ObjectReader queryRequestReader = new ObjectMapper().readerFor(QueryRequest.class);
+    static ObjectReader mappingRequestReader = new ObjectMapper().readerFor(MappingRequest.class);
+    static ObjectWriter indexMappingWriter = new ObjectMapper().writerFor(IndexMapping.class);
+    static ObjectReader indexStatsRequestReader = new ObjectMapper().readerFor(IndexStatsRequest.class);
+    static ObjectWriter indexStatsWriter = new ObjectMapper().writerFor(IndexStats.class);
+
+    // Maintenance commands an index request may carry, see IndexPayloadDecoder.
+    private static final List<String> INDEX_COMMAND_FIELDS = Arrays.asList("forceMerge", "snapshot", "releaseSnapshot", "deleteAll");
+
+    // Response bodies are written into a buffer per thread that is reused between requests. A reset
+    // buffer keeps only its last block, so a large response doesn't stay in memory.
+    private static final ThreadLocal<ByteArrayBuilder> responseBuffers = ThreadLocal.withInitial(ByteArrayBuilder::new);
+
+    // Writes the documents of a query response into the array of the response.
+    public interface DocumentsWriter {
+        void write(JsonGenerator generator) throws IOException;
+    }
 
     // Cache for allowed origins
     private static List<String> cachedAllowedOriginsList;
@@ -31,8 +59,8 @@ public class RequestUtils {
     public static List<String> getAllowedOriginsList() {
         // Check if the cache is empty
         if (cachedAllowedOriginsList == null) {
-            // Retrieve the allowedOrigins from the environment variable
-            String allowedOrigins = System.getenv("ALLOWED_ORIGINS") != null ? System.getenv("ALLOWED_ORIGINS") : "";
+            // Retrieve the allowedOrigins from the environment variable, or a system property in local runs
+            String allowedOrigins = EnvUtils.getString("ALLOWED_ORIGINS", "");
 
             // Split the allowedOrigins by comma into a list, and trim spaces
             cachedAllowedOriginsList = Arrays.stream(allowedOrigins.split(","))
@@ -93,27 +121,167 @@ public class RequestUtils {
 
     public static DeleteIndexRequest parseDeleteIndexRequest(APIGatewayProxyRequestEvent event) {
         try {
-            return deleteIndexRequestReader.readValue(event.getBody());
+            return deleteIndexRequestReader.readValue(body(event));
         } catch (IOException e) {
             throw new RuntimeException("Unable to parse a delete index request in body", e);
         }
     }
 
+    public static MappingRequest parseMappingRequest(APIGatewayProxyRequestEvent event) {
+        try {
+            return mappingRequestReader.readValue(body(event));
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to parse a mapping request in body", e);
+        }
+    }
+
+    public static IndexStatsRequest parseIndexStatsRequest(APIGatewayProxyRequestEvent event) {
+        try {
+            return indexStatsRequestReader.readValue(body(event));
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to parse an index stats request in body", e);
+        }
+    }
+
     public static QueryRequest parseQueryRequest(APIGatewayProxyRequestEvent event) {
         try {
-            LOG.info("parseQueryRequest: Received body: " + event.getBody());
-            Map<String, String> headers = event.getHeaders();
-            LOG.info("parseQueryRequest: Received headers: " + headers);
-            return queryRequestReader.readValue(event.getBody());
+            String body = body(event);
+            LOG.debugf("parseQueryRequest: Received body: %s", body);
+            return queryRequestReader.readValue(body);
         } catch (IOException e) {
             throw new RuntimeException("Unable to parse a query request in body", e);
         }
     }
 
-    public static APIGatewayProxyResponseEvent successResponse(QueryResponse queryResponse) throws JsonProcessingException {
+    // Streams the response into a pooled buffer, the documents are written straight from the stored fields.
+    public static APIGatewayProxyResponseEvent successResponse(QueryResponse queryResponse, DocumentsWriter documents)
+            throws IOException {
+        ByteArrayBuilder buffer = responseBuffers.get();
+        try {
+            try (JsonGenerator generator = jsonFactory.createGenerator(buffer)) {
+                generator.writeStartObject();
+                generator.writeStringField("totalDocuments", queryResponse.getTotalDocuments());
+                generator.writeArrayFieldStart("documents");
+                documents.write(generator);
+                generator.writeEndArray();
+                if (queryResponse.getNextCursor() != null) {
+                    generator.writeStringField("nextCursor", queryResponse.getNextCursor());
+                }
+                if (queryResponse.getFacets() != null) {
+                    generator.writeObjectField("facets", queryResponse.getFacets());
+                }
+                generator.writeEndObject();
+            }
+            return new APIGatewayProxyResponseEvent().withStatusCode(200)
+                    .withBody(new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+        } finally {
+            buffer.reset();
+        }
+    }
+
+    // Returns the body of a request, API Gateway base64 encodes bodies of binary media types.
+    public static String body(APIGatewayProxyRequestEvent event) {
+        if (Boolean.TRUE.equals(event.getIsBase64Encoded()) && event.getBody() != null) {
+            return new String(Base64.getDecoder().decode(event.getBody()), StandardCharsets.UTF_8);
+        }
+        return event.getBody();
+    }
+
+    // Whether an index payload carries maintenance commands. Objects after a request without a "documents"
+    // array are streamed documents, whose fields may have any name.
+    public static boolean hasIndexCommands(String payload) throws IOException {
+        if (payload == null) {
+            return false;
+        }
+        try (JsonParser parser = jsonFactory.createParser(payload)) {
+            boolean documentStream = false;
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                if (documentStream) {
+                    parser.skipChildren();
+                    continue;
+                }
+                boolean hasDocumentsArray = false;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String fieldName = parser.getCurrentName();
+                    if (INDEX_COMMAND_FIELDS.contains(fieldName)) {
+                        return true;
+                    }
+                    hasDocumentsArray |= "documents".equals(fieldName);
+                    parser.nextToken();
+                    parser.skipChildren();
+                }
+                documentStream = !hasDocumentsArray;
+            }
+        }
+        return false;
+    }
+
+    // Compresses the body with gzip or deflate if the Accept-Encoding header of the request allows it and
+    // the body has at least minBytes. API Gateway decodes the base64 body for the client.
+    public static APIGatewayProxyResponseEvent compress(APIGatewayProxyResponseEvent response, String acceptEncoding,
+                                                        int minBytes) {
+        String body = response.getBody();
+        if (minBytes <= 0 || acceptEncoding == null || body == null || body.length() < minBytes) {
+            return response;
+        }
+        String encoding = accepts(acceptEncoding, "gzip") ? "gzip" : accepts(acceptEncoding, "deflate") ? "deflate" : null;
+        if (encoding == null) {
+            return response;
+        }
+
+        ByteArrayBuilder buffer = responseBuffers.get();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            // Fastest level: most of the size is saved anyway, and p99 latency matters more than the last bytes.
+            try (OutputStream out = "gzip".equals(encoding) ? new FastGzipOutputStream(buffer) : new DeflaterOutputStream(buffer, deflater)) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+
+            Map<String, String> headers = response.getHeaders() != null ? new HashMap<>(response.getHeaders()) : new HashMap<>();
+            headers.put("Content-Encoding", encoding);
+            headers.put("Vary", "Accept-Encoding");
+            return response.withBody(Base64.getEncoder().encodeToString(buffer.toByteArray()))
+                    .withIsBase64Encoded(true).withHeaders(headers);
+        } catch (IOException e) {
+            LOG.error("Error while compressing a response", e);
+            return response;
+        } finally {
+            deflater.end();
+            buffer.reset();
+        }
+    }
+
+    private static class FastGzipOutputStream extends GZIPOutputStream {
+        FastGzipOutputStream(OutputStream out) throws IOException {
+            super(out);
+            def.setLevel(Deflater.BEST_SPEED);
+        }
+    }
+
+    private static boolean accepts(String acceptEncoding, String encoding) {
+        for (String part : acceptEncoding.split(",")) {
+            String[] tokens = part.trim().split(";");
+            if (tokens[0].trim().equalsIgnoreCase(encoding)) {
+                return tokens.length < 2 || !tokens[1].trim().matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    public static APIGatewayProxyResponseEvent successResponse(IndexMapping indexMapping) {
+        APIGatewayProxyResponseEvent response = new APIGatewayProxyResponseEvent();
+        try {
+            return response.withStatusCode(200).withBody(indexMappingWriter.writeValueAsString(indexMapping));
+        } catch (JsonProcessingException e) {
+            LOG.error(e);
+            return response.withStatusCode(500).withBody("Internal error");
+        }
+    }
+
+    public static APIGatewayProxyResponseEvent successResponse(IndexStats indexStats) {
         APIGatewayProxyResponseEvent response = new APIGatewayProxyResponseEvent();
         try {
-            return response.withStatusCode(200).withBody(queryResponseWriter.writeValueAsString(queryResponse));
+            return response.withStatusCode(200).withBody(indexStatsWriter.writeValueAsString(indexStats));
         } catch (JsonProcessingException e) {
             LOG.error(e);
             return response.withStatusCode(500).withBody("Internal error");
@@ -4,37 +4,53 @@ import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import dev.arseny.RequestUtils;
 import dev.arseny.model.DeleteIndexRequest;
-import dev.arseny.service.IndexWriterService;
-import org.apache.lucene.index.IndexWriter;
 import org.jboss.logging.Logger;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
 
 import javax.inject.Inject;
 import javax.inject.Named;
-import java.io.IOException;
 
+// Deletes all documents of an index. The delete is sent through the write queue like any other change,
+// so the indexer stays the only function that takes the write lock of an index. A writer it keeps open
+// in a frozen container would otherwise block this function, or lose its lock to it.
 @Named("deleteIndex")
 public class DeleteIndex implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
-    private static final Logger LOG = Logger.getLogger(IndexHandler.class);
+    private static final Logger LOG = Logger.getLogger(DeleteIndex.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    protected String queueName = System.getenv("QUEUE_URL");
 
     @Inject
-    protected IndexWriterService indexWriterService;
+    protected SqsClient sqsClient;
 
     @Override
     public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
         DeleteIndexRequest deleteIndexRequest = RequestUtils.parseDeleteIndexRequest(event);
 
-        IndexWriter writer = indexWriterService.getIndexWriter(deleteIndexRequest.getIndexName());
+        if (deleteIndexRequest.getIndexName() == null) {
+            return RequestUtils.errorResponse(400, "Missing indexName");
+        }
 
+        ObjectNode command = MAPPER.createObjectNode()
+                .put("indexName", deleteIndexRequest.getIndexName())
+                .put("deleteAll", true);
         try {
-            writer.deleteAll();
-            writer.commit();
-            writer.close();
-        } catch (IOException e) {
-            LOG.error(e);
+            sqsClient.sendMessage(SendMessageRequest.builder()
+                    .messageBody(MAPPER.writeValueAsString(command))
+                    .queueUrl(queueName).build());
+        } catch (JsonProcessingException | SdkException e) {
+            LOG.error("Error while enqueueing the delete of index " + deleteIndexRequest.getIndexName(), e);
+            return RequestUtils.errorResponse(503, "Unable to enqueue the delete, try again");
         }
 
-        return new APIGatewayProxyResponseEvent().withStatusCode(200);
+        // The indexer deletes the documents with the next batch of the queue.
+        return new APIGatewayProxyResponseEvent().withStatusCode(202);
     }
 }
@@ -4,12 +4,16 @@ import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import dev.arseny.RequestUtils;
 import software.amazon.awssdk.services.sqs.SqsClient;
 import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
 
 import javax.inject.Inject;
 import javax.inject.Named;
+import java.io.IOException;
 
+// Sends index requests to the write queue. Maintenance commands are rejected, since anyone who can call the
+// API could otherwise delete all documents or pin commits on disk; they are sent to the queue directly.
 @Named("enqueue-index")
 public class EnqueueIndexHandler implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
     protected String queueName = System.getenv("QUEUE_URL");
@@ -19,8 +23,17 @@ public class EnqueueIndexHandler implements RequestHandler<APIGatewayProxyReques
 
     @Override
     public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+        String body = RequestUtils.body(event);
+        try {
+            if (RequestUtils.hasIndexCommands(body)) {
+                return RequestUtils.errorResponse(400, "Maintenance commands can't be sent through the index endpoint");
+            }
+        } catch (IOException e) {
+            return RequestUtils.errorResponse(400, "Invalid index request");
+        }
+
         this.sqsClient.sendMessage(SendMessageRequest.builder()
-                .messageBody(event.getBody())
+                .messageBody(body)
                 .queueUrl(queueName).build());
 
         return new APIGatewayProxyResponseEvent().withStatusCode(200);
@@ -0,0 +1,40 @@
+package dev.arseny.handler;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import dev.arseny.RequestUtils;
+import dev.arseny.model.IndexStatsRequest;
+import dev.arseny.service.IndexSearcherService;
+import org.jboss.logging.Logger;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import java.io.IOException;
+
+// Returns the document and segment counts of an index, including the share of deleted documents
+// that merges have not reclaimed yet.
+@Named("stats")
+public class IndexStatsHandler implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
+    private static final Logger LOG = Logger.getLogger(IndexStatsHandler.class);
+
+    @Inject
+    protected IndexSearcherService indexSearcherService;
+
+    @Override
+    public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+        IndexStatsRequest statsRequest = RequestUtils.parseIndexStatsRequest(event);
+
+        if (statsRequest.getIndexName() == null) {
+            return RequestUtils.errorResponse(400, "Missing indexName");
+        }
+
+        try {
+            return RequestUtils.successResponse(indexSearcherService.stats(statsRequest.getIndexName()));
+        } catch (IOException e) {
+            LOG.error(e);
+            return RequestUtils.errorResponse(500, "Error");
+        }
+    }
+}
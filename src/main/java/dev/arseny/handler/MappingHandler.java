@@ -0,0 +1,46 @@
+package dev.arseny.handler;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import dev.arseny.RequestUtils;
+import dev.arseny.model.IndexMapping;
+import dev.arseny.model.MappingRequest;
+import dev.arseny.service.MappingService;
+import org.jboss.logging.Logger;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+// Adds field mappings to an index and returns the resulting mapping.
+// A request without fields only returns the current mapping.
+@Named("mapping")
+public class MappingHandler implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
+    private static final Logger LOG = Logger.getLogger(MappingHandler.class);
+
+    @Inject
+    protected MappingService mappingService;
+
+    @Override
+    public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+        MappingRequest mappingRequest = RequestUtils.parseMappingRequest(event);
+
+        if (mappingRequest.getIndexName() == null) {
+            return RequestUtils.errorResponse(400, "Missing indexName");
+        }
+
+        try {
+            IndexMapping mapping;
+            if (mappingRequest.getFields() == null || mappingRequest.getFields().isEmpty()) {
+                mapping = mappingService.getMapping(mappingRequest.getIndexName());
+            } else {
+                mapping = mappingService.updateMapping(mappingRequest.getIndexName(), mappingRequest.getFields());
+            }
+            return RequestUtils.successResponse(mapping);
+        } catch (IllegalArgumentException e) {
+            LOG.info("Rejected mapping update: " + e.getMessage());
+            return RequestUtils.errorResponse(400, e.getMessage());
+        }
+    }
+}
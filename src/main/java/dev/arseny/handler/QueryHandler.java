@@ -4,54 +4,108 @@ import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import dev.arseny.EnvUtils;
 import dev.arseny.RequestUtils;
+import dev.arseny.model.FacetRequest;
 import dev.arseny.model.QueryRequest;
 import dev.arseny.model.QueryResponse;
+import dev.arseny.model.IndexMapping;
+import dev.arseny.service.DocumentExporter;
+import dev.arseny.service.FacetService;
+import dev.arseny.service.HotQueries;
 import dev.arseny.service.IndexSearcherService;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.index.IndexableField;
+import dev.arseny.service.JsonFieldsVisitor;
+import dev.arseny.service.MappingQueries;
+import dev.arseny.service.MappingService;
+import dev.arseny.service.Metrics;
+import dev.arseny.service.QueryParserService;
+import dev.arseny.service.QueryResultCache;
+import dev.arseny.service.RequestMetrics;
+import dev.arseny.service.SearchCursor;
+import dev.arseny.service.Segments;
+import org.apache.lucene.facet.FacetsCollector;
+import org.apache.lucene.facet.FacetsCollectorManager;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.StoredFields;
 import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.*;
 import org.jboss.logging.Logger;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 @Named("query")
 public class QueryHandler implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
     private static final Logger LOG = Logger.getLogger(QueryHandler.class);
 
+    protected int defaultSize = EnvUtils.getInt("QUERY_DEFAULT_SIZE", 10);
+    protected int maxSize = EnvUtils.getInt("QUERY_MAX_SIZE", 1000);
+    protected int maxMultiQueries = EnvUtils.getInt("QUERY_MAX_MULTI_QUERIES", 50);
+    // Lambda responses are limited to 6MB, so pages must stay below that for the stored fields exported.
+    protected int maxExportSize = EnvUtils.getInt("QUERY_MAX_EXPORT_SIZE", 5000);
+    protected int compressionMinBytes = EnvUtils.getInt("QUERY_COMPRESSION_MIN_BYTES", 1024);
+
+    // Sub-queries of multi-search requests. Separate from the searcher threads, which the sub-queries
+    // hand their segment slices to and wait for.
+    protected ExecutorService multiSearchPool = Executors.newFixedThreadPool(
+            EnvUtils.getInt("QUERY_MULTI_THREADS", Runtime.getRuntime().availableProcessors()), runnable -> {
+                Thread thread = new Thread(runnable, "multi-search");
+                thread.setDaemon(true);
+                return thread;
+            });
+
     @Inject
     protected IndexSearcherService indexSearcherService;
 
+    @Inject
+    protected MappingService mappingService;
+
+    @Inject
+    protected QueryResultCache queryResultCache;
+
+    @Inject
+    protected HotQueries hotQueries;
+
+    @Inject
+    protected QueryParserService queryParserService;
+
+    @Inject
+    protected FacetService facetService;
+
+    @Inject
+    protected Metrics metrics;
+
     @Override
     public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
 
         Map<String, String> headers = event.getHeaders();
 
-        // Log all headers.
-        for (Map.Entry<String, String> entry : headers.entrySet()) {
-            LOG.info("Header Key: " + entry.getKey() + ", Value: " + entry.getValue());
+        // Bodies and headers are only logged for debugging, building the messages costs more than small queries.
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Handling body: " + RequestUtils.body(event));
+            LOG.debug("Handling headers: " + headers);
+            LOG.debug("Handling method: " + event.getHttpMethod());
         }
-        LOG.info("Handling body: " + event.getBody());
-        LOG.info("Handling headers: " + headers);
-        LOG.info("Handling method: "+ event.getHttpMethod());
 
         // Extract the request origin
         String origin = headers.get("Origin");
         if (origin == null) {
             origin = headers.get("origin");
         }
-        LOG.info("Request origin: " + origin);
+        LOG.debugf("Request origin: %s", origin);
 
         // Check if the request is an OPTIONS request. This is necessary to allow access from Ajax.
         if ("OPTIONS".equalsIgnoreCase(event.getHttpMethod())) {
@@ -64,36 +118,265 @@ public class QueryHandler implements RequestHandler<APIGatewayProxyRequestEvent,
             return RequestUtils.errorResponse(403, "Forbidden").withHeaders(RequestUtils.getCORSHeaders(origin));
         }
 
-        QueryResponse queryResponse = new QueryResponse();
         QueryRequest queryRequest = RequestUtils.parseQueryRequest(event);
-        QueryParser qp = new QueryParser("content", new StandardAnalyzer());
+        APIGatewayProxyResponseEvent response;
+        if (queryRequest.getQueries() != null) {
+            response = multiSearch(queryRequest).withHeaders(RequestUtils.getCORSHeaders(origin));
+        } else if (queryRequest.isExport()) {
+            response = export(queryRequest, origin);
+        } else {
+            response = search(queryRequest).withHeaders(RequestUtils.getCORSHeaders(origin));
+        }
+
+        String acceptEncoding = headers.get("Accept-Encoding");
+        if (acceptEncoding == null) {
+            acceptEncoding = headers.get("accept-encoding");
+        }
+        String accept = headers.get("Accept");
+        if (accept == null) {
+            accept = headers.get("accept");
+        }
+        // API Gateway only decodes the base64 body when the first accepted type is a binary media type.
+        if (!isBinaryMediaType(accept)) {
+            return response;
+        }
+        return RequestUtils.compress(response, acceptEncoding, compressionMinBytes);
+    }
+
+    // The binaryMediaTypes of the API in serverless.yml.
+    private static boolean isBinaryMediaType(String accept) {
+        if (accept == null) {
+            return false;
+        }
+        String type = accept.split(",")[0].split(";")[0].trim();
+        return type.equalsIgnoreCase("application/json") || type.equalsIgnoreCase("application/x-ndjson");
+    }
+
+    // Runs the sub-queries of a multi-search request in parallel and returns their responses in order.
+    // Sub-queries without an indexName search the index of the request. A failing sub-query returns its
+    // error in place of its response and doesn't fail the others.
+    private APIGatewayProxyResponseEvent multiSearch(QueryRequest multiRequest) {
+        List<QueryRequest> queryRequests = multiRequest.getQueries();
+        if (queryRequests.isEmpty() || queryRequests.size() > maxMultiQueries) {
+            return RequestUtils.errorResponse(400, "queries must hold between 1 and " + maxMultiQueries + " queries");
+        }
+
+        List<Callable<APIGatewayProxyResponseEvent>> tasks = new ArrayList<>();
+        for (QueryRequest queryRequest : queryRequests) {
+            if (queryRequest.getIndexName() == null) {
+                queryRequest.setIndexName(multiRequest.getIndexName());
+            }
+            tasks.add(() -> search(queryRequest));
+        }
+
+        List<Future<APIGatewayProxyResponseEvent>> futures;
         try {
-            Query query = qp.parse(queryRequest.getQuery());
+            futures = multiSearchPool.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return RequestUtils.errorResponse(500, "Error");
+        }
 
-            IndexSearcher searcher = indexSearcherService.getIndexSearcher(queryRequest.getIndexName());
+        List<String> bodies = new ArrayList<>();
+        for (Future<APIGatewayProxyResponseEvent> future : futures) {
+            String body;
+            try {
+                body = future.get().getBody();
+            } catch (InterruptedException | ExecutionException e) {
+                LOG.error("Error while running a sub-query", e);
+                body = null;
+            }
+            // Every body must be JSON to be embedded, serialization failures come back as plain text.
+            bodies.add(body != null && body.startsWith("{") ? body : RequestUtils.errorResponse(500, "Error").getBody());
+        }
 
-            TopDocs topDocs = searcher.search(query, 10);
+        // The bodies are JSON already, possibly straight from the query result cache.
+        return new APIGatewayProxyResponseEvent().withStatusCode(200)
+                .withBody("{\"responses\":[" + String.join(",", bodies) + "]}");
+    }
 
-            for (ScoreDoc scoreDocs : topDocs.scoreDocs) {
-                Document document = searcher.storedFields().document(scoreDocs.doc);
+    // Returns a page of all matches in index order as newline-delimited JSON. The cursor of the next page
+    // is returned in the X-Export-Cursor header, and is missing on the last page.
+    private APIGatewayProxyResponseEvent export(QueryRequest queryRequest, String origin) {
+        Map<String, String> headers = RequestUtils.getCORSHeaders(origin);
+        IndexSearcher searcher = null;
+        try {
+            if (queryRequest.getIndexName() == null) {
+                throw new IllegalArgumentException("Missing indexName");
+            }
+            int size = queryRequest.getSize() != null ? queryRequest.getSize() : maxExportSize;
+            if (size < 1 || size > maxExportSize) {
+                throw new IllegalArgumentException("size must be between 1 and " + maxExportSize);
+            }
+            if (queryRequest.getSort() != null || queryRequest.getFacets() != null) {
+                throw new IllegalArgumentException("Exports can't be sorted or faceted");
+            }
 
-                Map<String, String> result = new HashMap<>();
+            if (queryRequest.isRefresh()) {
+                indexSearcherService.requestRefresh(queryRequest.getIndexName());
+            }
+            // Later pages read the commit the export started on.
+            searcher = queryRequest.getSearchAfter() != null
+                    ? indexSearcherService.acquire(queryRequest.getIndexName(),
+                            DocumentExporter.generation(queryRequest.getSearchAfter()))
+                    : indexSearcherService.acquire(queryRequest.getIndexName());
+            IndexMapping mapping = mappingService.getMapping(queryRequest.getIndexName());
+            Query query;
+            if (queryRequest.getQueryDsl() != null) {
+                query = queryParserService.parse(queryRequest.getIndexName(), mapping, queryRequest.getQueryDsl());
+            } else if (queryRequest.getQuery() != null) {
+                query = queryParserService.parse(queryRequest.getIndexName(), mapping, queryRequest.getQuery());
+            } else {
+                query = new MatchAllDocsQuery();
+            }
+
+            DocumentExporter.Page page = DocumentExporter.export(searcher, query, queryRequest.getFields(), size,
+                    queryRequest.getSearchAfter());
+            LOG.info("Exported " + page.documents + " documents of index " + queryRequest.getIndexName());
+
+            headers.put("Content-Type", "application/x-ndjson");
+            if (page.nextCursor != null) {
+                headers.put("X-Export-Cursor", page.nextCursor);
+                headers.put("Access-Control-Expose-Headers", "X-Export-Cursor");
+            }
+            return new APIGatewayProxyResponseEvent().withStatusCode(200).withBody(page.body).withHeaders(headers);
+        } catch (ParseException | IllegalArgumentException e) {
+            LOG.info("Invalid export: " + e.getMessage());
 
-                for (IndexableField field : document.getFields()) {
-                    result.put(field.name(), field.stringValue());
+            return RequestUtils.errorResponse(400, e.getMessage()).withHeaders(headers);
+        } catch (IOException e) {
+            LOG.error(e);
+
+            return RequestUtils.errorResponse(500, "Error").withHeaders(headers);
+        } finally {
+            if (searcher != null) {
+                indexSearcherService.release(searcher);
+            }
+        }
+    }
+
+    private APIGatewayProxyResponseEvent search(QueryRequest queryRequest) {
+        QueryResponse queryResponse = new QueryResponse();
+        IndexSearcher searcher = null;
+        RequestMetrics requestMetrics = metrics.start("query");
+        try {
+            if (queryRequest.getIndexName() == null) {
+                throw new IllegalArgumentException("Missing indexName");
+            }
+            if (queryRequest.isExport()) {
+                throw new IllegalArgumentException("Exports can't be part of a multi-search");
+            }
+            int size = queryRequest.getSize() != null ? queryRequest.getSize() : defaultSize;
+            if (size < 1 || size > maxSize) {
+                throw new IllegalArgumentException("size must be between 1 and " + maxSize);
+            }
+            if (queryRequest.getQuery() == null && queryRequest.getQueryDsl() == null) {
+                throw new IllegalArgumentException("Missing query");
+            }
+            String queryText = queryRequest.getQueryDsl() != null
+                    ? QueryParserService.canonical(queryRequest.getQueryDsl()) : queryRequest.getQuery().trim();
+
+            if (queryRequest.isRefresh()) {
+                indexSearcherService.requestRefresh(queryRequest.getIndexName());
+            }
+            searcher = indexSearcherService.acquire(queryRequest.getIndexName());
+            requestMetrics.property("Index", queryRequest.getIndexName());
+            requestMetrics.stage("acquire");
+
+            long readerVersion = ((DirectoryReader) searcher.getIndexReader()).getVersion();
+            IndexMapping mapping = mappingService.getMapping(queryRequest.getIndexName());
+            String cacheKey = QueryResultCache.key(queryRequest, size, readerVersion);
+            String cachedBody = queryResultCache.get(cacheKey, mapping);
+            requestMetrics.stage("cache");
+            requestMetrics.count("cacheHit", cachedBody != null ? 1 : 0);
+            if (cachedBody != null) {
+                hotQueries.record(queryRequest.getIndexName(), queryText, null);
+                return new APIGatewayProxyResponseEvent().withStatusCode(200).withBody(cachedBody);
+            }
+
+            Query query = queryRequest.getQueryDsl() != null
+                    ? queryParserService.parse(queryRequest.getIndexName(), mapping, queryRequest.getQueryDsl())
+                    : queryParserService.parse(queryRequest.getIndexName(), mapping, queryRequest.getQuery());
+            hotQueries.record(queryRequest.getIndexName(), queryText, query);
+            Sort sort = MappingQueries.sort(mapping, queryRequest.getSort());
+            ScoreDoc after = queryRequest.getSearchAfter() != null ? SearchCursor.decode(queryRequest.getSearchAfter()) : null;
+            requestMetrics.stage("parse");
+
+            List<FacetRequest> facetRequests = queryRequest.getFacets();
+            TopDocs topDocs;
+            if (facetRequests == null || facetRequests.isEmpty()) {
+                // searchAfter only collects the hits past the cursor, so deep pages don't re-rank all the previous ones.
+                topDocs = sort != null ? searcher.searchAfter(after, query, size, sort) : searcher.searchAfter(after, query, size);
+            } else {
+                FacetService.validate(mapping, facetRequests);
+                // Hits and facets are collected in the same pass over the matching documents. Facets have to
+                // visit every match anyway, so the total is counted exactly.
+                int numHits = Math.min(size, Math.max(1, searcher.getIndexReader().maxDoc()));
+                CollectorManager<?, ? extends TopDocs> hitsManager;
+                if (sort != null) {
+                    if (after != null && !(after instanceof FieldDoc)) {
+                        throw new IllegalArgumentException("searchAfter doesn't match the sort");
+                    }
+                    hitsManager = TopFieldCollector.createSharedManager(sort, numHits, (FieldDoc) after, Integer.MAX_VALUE);
+                } else {
+                    hitsManager = TopScoreDocCollector.createSharedManager(numHits, after, Integer.MAX_VALUE);
                 }
+                Object[] results = searcher.search(query, new MultiCollectorManager(hitsManager, new FacetsCollectorManager()));
+                topDocs = (TopDocs) results[0];
+                queryResponse.setFacets(facetService.count(searcher.getIndexReader(), mapping, facetRequests, (FacetsCollector) results[1]));
+            }
 
-                queryResponse.getDocuments().add(result);
+            if (topDocs.scoreDocs.length == size) {
+                queryResponse.setNextCursor(SearchCursor.encode(topDocs.scoreDocs[size - 1]));
             }
 
             queryResponse.setTotalDocuments((topDocs.totalHits.relation == TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO ? "≥" : "") + topDocs.totalHits.value);
+            requestMetrics.stage("search");
+            requestMetrics.count("hits", topDocs.totalHits.value);
+            recordIndexSize(requestMetrics, searcher);
+
+            StoredFields storedFields = searcher.storedFields();
+            ScoreDoc[] scoreDocs = topDocs.scoreDocs;
+            // Stored fields are read while the response is written, so the time spent reading them is
+            // taken out of the serialization time.
+            long[] fetchNanos = new long[1];
+            APIGatewayProxyResponseEvent response = RequestUtils.successResponse(queryResponse, generator -> {
+                long fetchStart = System.nanoTime();
+                JsonFieldsVisitor visitor = new JsonFieldsVisitor(generator, queryRequest.getFields());
+                for (ScoreDoc scoreDoc : scoreDocs) {
+                    visitor.writeDocument(storedFields, scoreDoc.doc);
+                }
+                fetchNanos[0] = System.nanoTime() - fetchStart;
+            });
+            requestMetrics.stage("serialize");
+            requestMetrics.addStage("serialize", -fetchNanos[0]);
+            requestMetrics.addStage("fetch", fetchNanos[0]);
+            requestMetrics.count("responseBytes", response.getBody().length());
+            indexSearcherService.recordBlockCacheCounts(requestMetrics);
+            queryResultCache.put(queryRequest.getIndexName(), mapping, cacheKey, response.getBody());
+            return response;
+        } catch (ParseException | IllegalArgumentException e) {
+            LOG.info("Invalid query: " + e.getMessage());
 
-            return RequestUtils.successResponse(queryResponse).withHeaders(RequestUtils.getCORSHeaders(origin));
-        } catch (ParseException | IOException e) {
+            return RequestUtils.errorResponse(400, e.getMessage());
+        } catch (IOException e) {
             LOG.error(e);
 
-            return RequestUtils.errorResponse(500, "Error").withHeaders(RequestUtils.getCORSHeaders(origin));
+            return RequestUtils.errorResponse(500, "Error");
+        } finally {
+            if (searcher != null) {
+                indexSearcherService.release(searcher);
+            }
+            requestMetrics.finish();
         }
     }
 
+    // Segment counts, sizes and deleted documents show when merges fall behind the indexing.
+    private static void recordIndexSize(RequestMetrics requestMetrics, IndexSearcher searcher) throws IOException {
+        IndexReader reader = searcher.getIndexReader();
+        requestMetrics.count("segments", reader.leaves().size());
+        requestMetrics.count("indexBytes", Segments.sizeInBytes(reader));
+        requestMetrics.count("deletedDocs", reader.numDeletedDocs());
+    }
+
 }
@@ -0,0 +1,38 @@
+package dev.arseny.model;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+// A bucket of a range facet, from is inclusive and to is exclusive. Either bound may be left out.
+@RegisterForReflection
+public class FacetRange {
+    private String label;
+    private String from;
+    private String to;
+
+    public FacetRange() {
+    }
+
+    public String getLabel() {
+        return label != null ? label : (from != null ? from : "*") + " TO " + (to != null ? to : "*");
+    }
+
+    public void setLabel(String label) {
+        this.label = label;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public void setFrom(String from) {
+        this.from = from;
+    }
+
+    public String getTo() {
+        return to;
+    }
+
+    public void setTo(String to) {
+        this.to = to;
+    }
+}
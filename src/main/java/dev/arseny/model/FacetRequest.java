@@ -0,0 +1,50 @@
+package dev.arseny.model;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+import java.util.List;
+
+// Counts the matching documents per value of a field, or per range when ranges are given.
+@RegisterForReflection
+public class FacetRequest {
+    private String name;
+    private String field;
+    private Integer size;
+    private List<FacetRange> ranges;
+
+    public FacetRequest() {
+    }
+
+    // The key of the facet in the response, the field name unless set.
+    public String getName() {
+        return name != null ? name : field;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public void setField(String field) {
+        this.field = field;
+    }
+
+    public Integer getSize() {
+        return size;
+    }
+
+    public void setSize(Integer size) {
+        this.size = size;
+    }
+
+    public List<FacetRange> getRanges() {
+        return ranges;
+    }
+
+    public void setRanges(List<FacetRange> ranges) {
+        this.ranges = ranges;
+    }
+}
@@ -0,0 +1,57 @@
+package dev.arseny.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+@RegisterForReflection
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class FieldMapping {
+    private MappingType type = MappingType.TEXT;
+    private boolean stored = true;
+    private boolean indexed = true;
+    private Boolean docValues;
+
+    public FieldMapping() {
+    }
+
+    public FieldMapping(MappingType type) {
+        this.type = type;
+    }
+
+    public MappingType getType() {
+        return type;
+    }
+
+    public void setType(MappingType type) {
+        this.type = type;
+    }
+
+    public boolean isStored() {
+        return stored;
+    }
+
+    public void setStored(boolean stored) {
+        this.stored = stored;
+    }
+
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    public void setIndexed(boolean indexed) {
+        this.indexed = indexed;
+    }
+
+    public Boolean getDocValues() {
+        return docValues;
+    }
+
+    public void setDocValues(Boolean docValues) {
+        this.docValues = docValues;
+    }
+
+    // Doc values default to on for keyword, numeric and date fields.
+    public boolean hasDocValues() {
+        return docValues != null ? docValues : type.isDocValuesByDefault();
+    }
+}
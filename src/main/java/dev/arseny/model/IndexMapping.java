@@ -0,0 +1,30 @@
+package dev.arseny.model;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+@RegisterForReflection
+public class IndexMapping {
+    private static final FieldMapping DEFAULT_FIELD_MAPPING = new FieldMapping(MappingType.TEXT);
+
+    private Map<String, FieldMapping> fields = new LinkedHashMap<>();
+
+    public IndexMapping() {
+    }
+
+    public Map<String, FieldMapping> getFields() {
+        return fields;
+    }
+
+    public void setFields(Map<String, FieldMapping> fields) {
+        this.fields = fields;
+    }
+
+    // Returns the mapping of a field, fields without one are stored text.
+    public FieldMapping mappingFor(String field) {
+        FieldMapping mapping = fields.get(field);
+        return mapping != null ? mapping : DEFAULT_FIELD_MAPPING;
+    }
+}
@@ -6,6 +6,8 @@ import java.util.Map;
 public class IndexRequest {
     private String indexName;
     private List<Map<String, Object>> documents;
+    // Partial updates: a uuid and new values of numeric fields that only have doc values.
+    private List<Map<String, Object>> updates;
 
     public IndexRequest() {
     }
@@ -25,4 +27,12 @@ public class IndexRequest {
     public void setDocuments(List<Map<String, Object>> documents) {
         this.documents = documents;
     }
+
+    public List<Map<String, Object>> getUpdates() {
+        return updates;
+    }
+
+    public void setUpdates(List<Map<String, Object>> updates) {
+        this.updates = updates;
+    }
 }
@@ -0,0 +1,83 @@
+package dev.arseny.model;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+@RegisterForReflection
+public class IndexStats {
+    private String indexName;
+    private int numDocs;
+    private int maxDoc;
+    // Deleted and replaced documents that still take up space until their segments are merged.
+    private int deletedDocs;
+    private double deletedRatio;
+    private int segments;
+    private long sizeInBytes;
+    private long version;
+
+    public IndexStats() {
+    }
+
+    public String getIndexName() {
+        return indexName;
+    }
+
+    public void setIndexName(String indexName) {
+        this.indexName = indexName;
+    }
+
+    public int getNumDocs() {
+        return numDocs;
+    }
+
+    public void setNumDocs(int numDocs) {
+        this.numDocs = numDocs;
+    }
+
+    public int getMaxDoc() {
+        return maxDoc;
+    }
+
+    public void setMaxDoc(int maxDoc) {
+        this.maxDoc = maxDoc;
+    }
+
+    public int getDeletedDocs() {
+        return deletedDocs;
+    }
+
+    public void setDeletedDocs(int deletedDocs) {
+        this.deletedDocs = deletedDocs;
+    }
+
+    public double getDeletedRatio() {
+        return deletedRatio;
+    }
+
+    public void setDeletedRatio(double deletedRatio) {
+        this.deletedRatio = deletedRatio;
+    }
+
+    public int getSegments() {
+        return segments;
+    }
+
+    public void setSegments(int segments) {
+        this.segments = segments;
+    }
+
+    public long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    public void setSizeInBytes(long sizeInBytes) {
+        this.sizeInBytes = sizeInBytes;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+}
@@ -0,0 +1,16 @@
+package dev.arseny.model;
+
+public class IndexStatsRequest {
+    private String indexName;
+
+    public IndexStatsRequest() {
+    }
+
+    public String getIndexName() {
+        return indexName;
+    }
+
+    public void setIndexName(String indexName) {
+        this.indexName = indexName;
+    }
+}
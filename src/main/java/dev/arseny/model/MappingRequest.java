@@ -0,0 +1,27 @@
+package dev.arseny.model;
+
+import java.util.Map;
+
+public class MappingRequest {
+    private String indexName;
+    private Map<String, FieldMapping> fields;
+
+    public MappingRequest() {
+    }
+
+    public String getIndexName() {
+        return indexName;
+    }
+
+    public void setIndexName(String indexName) {
+        this.indexName = indexName;
+    }
+
+    public Map<String, FieldMapping> getFields() {
+        return fields;
+    }
+
+    public void setFields(Map<String, FieldMapping> fields) {
+        this.fields = fields;
+    }
+}
@@ -0,0 +1,48 @@
+package dev.arseny.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+public enum MappingType {
+    // Analyzed full text, the type of every field without a mapping.
+    TEXT(false),
+    // A single exact-match term.
+    KEYWORD(true),
+    // 64-bit integer indexed as a point.
+    LONG(true),
+    // Double precision number indexed as a point.
+    DOUBLE(true),
+    // Epoch milliseconds or an ISO-8601 string, indexed as a long point.
+    DATE(true),
+    // Only kept in the stored fields, can't be searched.
+    STORED(false);
+
+    private final boolean docValuesByDefault;
+
+    MappingType(boolean docValuesByDefault) {
+        this.docValuesByDefault = docValuesByDefault;
+    }
+
+    public boolean isDocValuesByDefault() {
+        return docValuesByDefault;
+    }
+
+    public boolean isNumeric() {
+        return this == LONG || this == DOUBLE || this == DATE;
+    }
+
+    @JsonValue
+    public String toJson() {
+        return name().toLowerCase();
+    }
+
+    @JsonCreator
+    public static MappingType fromJson(String value) {
+        for (MappingType type : values()) {
+            if (type.name().equalsIgnoreCase(value)) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown field type: " + value);
+    }
+}
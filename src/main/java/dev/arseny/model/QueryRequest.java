@@ -1,8 +1,26 @@
 package dev.arseny.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonSetter;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.List;
+
 public class QueryRequest {
     private String indexName;
     private String query;
+    // Set instead of query when the query is a JSON object in the query DSL.
+    private JsonNode queryDsl;
+    private boolean refresh;
+    private List<SortRequest> sort;
+    private Integer size;
+    private String searchAfter;
+    private List<String> fields;
+    private List<FacetRequest> facets;
+    // Set for a multi-search request, whose sub-queries are run together.
+    private List<QueryRequest> queries;
+    // Exports every match as newline-delimited JSON instead of returning the top hits.
+    private boolean export;
 
     public QueryRequest() {
     }
@@ -22,4 +40,91 @@ public class QueryRequest {
     public void setQuery(String query) {
         this.query = query;
     }
+
+    @JsonIgnore
+    public JsonNode getQueryDsl() {
+        return queryDsl;
+    }
+
+    @JsonIgnore
+    public void setQueryDsl(JsonNode queryDsl) {
+        this.queryDsl = queryDsl;
+    }
+
+    // The query is either a query string or a structured query.
+    @JsonSetter("query")
+    public void setQueryNode(JsonNode node) {
+        if (node == null || node.isNull()) {
+            query = null;
+            queryDsl = null;
+        } else if (node.isTextual()) {
+            query = node.asText();
+        } else {
+            queryDsl = node;
+        }
+    }
+
+    public boolean isRefresh() {
+        return refresh;
+    }
+
+    public void setRefresh(boolean refresh) {
+        this.refresh = refresh;
+    }
+
+    public List<SortRequest> getSort() {
+        return sort;
+    }
+
+    public void setSort(List<SortRequest> sort) {
+        this.sort = sort;
+    }
+
+    public Integer getSize() {
+        return size;
+    }
+
+    public void setSize(Integer size) {
+        this.size = size;
+    }
+
+    public String getSearchAfter() {
+        return searchAfter;
+    }
+
+    public void setSearchAfter(String searchAfter) {
+        this.searchAfter = searchAfter;
+    }
+
+    public List<String> getFields() {
+        return fields;
+    }
+
+    public void setFields(List<String> fields) {
+        this.fields = fields;
+    }
+
+    public List<FacetRequest> getFacets() {
+        return facets;
+    }
+
+    public void setFacets(List<FacetRequest> facets) {
+        this.facets = facets;
+    }
+
+    public List<QueryRequest> getQueries() {
+        return queries;
+    }
+
+    public void setQueries(List<QueryRequest> queries) {
+        this.queries = queries;
+    }
+
+    public boolean isExport() {
+        return export;
+    }
+
+    public void setExport(boolean export) {
+        this.export = export;
+    }
 }
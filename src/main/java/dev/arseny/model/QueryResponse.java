@@ -1,12 +1,20 @@
 package dev.arseny.model;
 
-import java.util.ArrayList;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 import java.util.List;
 import java.util.Map;
 
+// The fields of a query response besides its documents, which RequestUtils.successResponse writes
+// straight from the stored fields of the hits.
 public class QueryResponse {
     private String totalDocuments;
-    private List<Map<String, String>> documents = new ArrayList<>();
+    // Set when the page is full, pass it back as searchAfter to get the next page.
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String nextCursor;
+    // Buckets of every requested facet, keyed by facet name.
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Map<String, List<FacetBucket>> facets;
 
     public QueryResponse() {
     }
@@ -19,11 +27,19 @@ public class QueryResponse {
         this.totalDocuments = totalDocuments;
     }
 
-    public List<Map<String, String>> getDocuments() {
-        return documents;
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+
+    public Map<String, List<FacetBucket>> getFacets() {
+        return facets;
     }
 
-    public void setDocuments(List<Map<String, String>> documents) {
-        this.documents = documents;
+    public void setFacets(Map<String, List<FacetBucket>> facets) {
+        this.facets = facets;
     }
 }
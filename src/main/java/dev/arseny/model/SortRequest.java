@@ -0,0 +1,32 @@
+package dev.arseny.model;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+@RegisterForReflection
+public class SortRequest {
+    private String field;
+    private String order = "asc";
+
+    public SortRequest() {
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public void setField(String field) {
+        this.field = field;
+    }
+
+    public String getOrder() {
+        return order;
+    }
+
+    public void setOrder(String order) {
+        this.order = order;
+    }
+
+    public boolean isDescending() {
+        return "desc".equalsIgnoreCase(order);
+    }
+}
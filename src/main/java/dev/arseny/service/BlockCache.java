@@ -0,0 +1,135 @@
+package dev.arseny.service;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Fixed-size blocks of index files kept in one off-heap slab. Blocks are evicted in LRU order and their
+// slots reused, so the cache never allocates after it was created and stays out of the Java heap.
+class BlockCache {
+    final int blockSize;
+
+    private final ByteBuffer slab;
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    // Access ordered, so iteration starts with the least recently used block.
+    private final LinkedHashMap<BlockKey, CachedBlock> blocks = new LinkedHashMap<>(1024, 0.75f, true);
+
+    // Counted since they were last reported with the metrics of a request.
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong evictions = new AtomicLong();
+    final AtomicLong bytesFetched = new AtomicLong();
+
+    static class BlockKey {
+        final String indexName;
+        final String fileName;
+        // File names are never reused within an index, the length guards against a recreated index.
+        final long fileLength;
+        final long blockIndex;
+
+        BlockKey(String indexName, String fileName, long fileLength, long blockIndex) {
+            this.indexName = indexName;
+            this.fileName = fileName;
+            this.fileLength = fileLength;
+            this.blockIndex = blockIndex;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof BlockKey)) {
+                return false;
+            }
+            BlockKey other = (BlockKey) o;
+            return blockIndex == other.blockIndex && fileLength == other.fileLength
+                    && fileName.equals(other.fileName) && indexName.equals(other.indexName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(indexName, fileName, fileLength, blockIndex);
+        }
+    }
+
+    private static class CachedBlock {
+        final int slot;
+        final int length;
+
+        CachedBlock(int slot, int length) {
+            this.slot = slot;
+            this.length = length;
+        }
+    }
+
+    // A single ByteBuffer holds at most 2GB, larger caches are capped.
+    BlockCache(long maxBytes, int blockSize) {
+        this.blockSize = blockSize;
+        int slots = (int) Math.max(1, Math.min(maxBytes, Integer.MAX_VALUE) / blockSize);
+        this.slab = ByteBuffer.allocateDirect(slots * blockSize);
+        for (int slot = 0; slot < slots; slot++) {
+            freeSlots.add(slot);
+        }
+    }
+
+    // Copies the block into the destination and returns its length, or -1 if it isn't cached.
+    int read(BlockKey key, byte[] destination) {
+        synchronized (blocks) {
+            CachedBlock cachedBlock = blocks.get(key);
+            if (cachedBlock == null) {
+                misses.incrementAndGet();
+                return -1;
+            }
+            ByteBuffer view = slab.duplicate();
+            view.position(cachedBlock.slot * blockSize);
+            view.get(destination, 0, cachedBlock.length);
+            hits.incrementAndGet();
+            return cachedBlock.length;
+        }
+    }
+
+    void put(BlockKey key, byte[] source, int offset, int length) {
+        synchronized (blocks) {
+            if (blocks.containsKey(key)) {
+                return;
+            }
+            Integer slot = freeSlots.poll();
+            if (slot == null) {
+                Iterator<CachedBlock> eldest = blocks.values().iterator();
+                slot = eldest.next().slot;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+            ByteBuffer view = slab.duplicate();
+            view.position(slot * blockSize);
+            view.put(source, offset, length);
+            blocks.put(key, new CachedBlock(slot, length));
+        }
+    }
+
+    // Frees the blocks of a deleted file.
+    void invalidate(String indexName, String fileName) {
+        synchronized (blocks) {
+            Iterator<Map.Entry<BlockKey, CachedBlock>> iterator = blocks.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<BlockKey, CachedBlock> entry = iterator.next();
+                if (entry.getKey().fileName.equals(fileName) && entry.getKey().indexName.equals(indexName)) {
+                    freeSlots.add(entry.getValue().slot);
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    // Adds the counts since the last report to the request. Every access is reported by exactly one
+    // request, so the sums in CloudWatch are exact even though queries of the container run concurrently.
+    void report(RequestMetrics requestMetrics) {
+        requestMetrics.count("blockCacheHits", hits.getAndSet(0));
+        requestMetrics.count("blockCacheMisses", misses.getAndSet(0));
+        requestMetrics.count("blockCacheEvictions", evictions.getAndSet(0));
+        requestMetrics.count("blockCacheFetchedBytes", bytesFetched.getAndSet(0));
+    }
+}
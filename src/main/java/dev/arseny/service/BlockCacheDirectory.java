@@ -0,0 +1,39 @@
+package dev.arseny.service;
+
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+
+import java.io.IOException;
+
+// Reads index files through a BlockCache. Merges bypass the cache, they read every file once and would
+// only push out the blocks that queries keep coming back to. Segments files are small and read once.
+class BlockCacheDirectory extends FilterDirectory {
+    private final String indexName;
+    private final BlockCache blockCache;
+    private final int readAheadBlocks;
+
+    BlockCacheDirectory(Directory in, String indexName, BlockCache blockCache, int readAheadBlocks) {
+        super(in);
+        this.indexName = indexName;
+        this.blockCache = blockCache;
+        this.readAheadBlocks = readAheadBlocks;
+    }
+
+    @Override
+    public IndexInput openInput(String name, IOContext context) throws IOException {
+        IndexInput input = in.openInput(name, context);
+        if (context.context == IOContext.Context.MERGE || name.startsWith(IndexFileNames.SEGMENTS)) {
+            return input;
+        }
+        return new BlockCacheIndexInput(input, indexName, name, blockCache, readAheadBlocks);
+    }
+
+    @Override
+    public void deleteFile(String name) throws IOException {
+        in.deleteFile(name);
+        blockCache.invalidate(indexName, name);
+    }
+}
@@ -0,0 +1,156 @@
+package dev.arseny.service;
+
+import org.apache.lucene.store.IndexInput;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+// An IndexInput that serves reads from cached blocks and fetches missing blocks from the wrapped input.
+// When blocks are read in order, the following readAheadBlocks blocks are fetched with the same read.
+// Clones and slices share the wrapped input, which is only positioned while fetching.
+class BlockCacheIndexInput extends IndexInput {
+    private final IndexInput delegate;
+    private final String indexName;
+    private final String fileName;
+    private final long fileLength;
+    private final BlockCache blockCache;
+    private final int readAheadBlocks;
+
+    // Start and length of this input within the file, for slices.
+    private final long sliceOffset;
+    private final long length;
+    private final boolean isClone;
+
+    private long position;
+    private byte[] block;
+    private long blockIndex = -1;
+    private int blockLength;
+
+    BlockCacheIndexInput(IndexInput delegate, String indexName, String fileName, BlockCache blockCache, int readAheadBlocks) {
+        this(delegate, indexName, fileName, delegate.length(), blockCache, readAheadBlocks, 0, delegate.length(), false,
+                "BlockCacheIndexInput(" + delegate + ")");
+    }
+
+    private BlockCacheIndexInput(IndexInput delegate, String indexName, String fileName, long fileLength, BlockCache blockCache,
+                                 int readAheadBlocks, long sliceOffset, long length, boolean isClone, String resourceDescription) {
+        super(resourceDescription);
+        this.delegate = delegate;
+        this.indexName = indexName;
+        this.fileName = fileName;
+        this.fileLength = fileLength;
+        this.blockCache = blockCache;
+        this.readAheadBlocks = readAheadBlocks;
+        this.sliceOffset = sliceOffset;
+        this.length = length;
+        this.isClone = isClone;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        if (position >= length) {
+            throw new EOFException("Read past EOF: " + this);
+        }
+        int offsetInBlock = loadBlock(sliceOffset + position);
+        position++;
+        return block[offsetInBlock];
+    }
+
+    @Override
+    public void readBytes(byte[] b, int offset, int len) throws IOException {
+        if (position + len > length) {
+            throw new EOFException("Read past EOF: " + this);
+        }
+        while (len > 0) {
+            int offsetInBlock = loadBlock(sliceOffset + position);
+            int count = Math.min(len, blockLength - offsetInBlock);
+            System.arraycopy(block, offsetInBlock, b, offset, count);
+            position += count;
+            offset += count;
+            len -= count;
+        }
+    }
+
+    // Makes the block holding the file offset current and returns the offset within it.
+    private int loadBlock(long fileOffset) throws IOException {
+        long index = fileOffset / blockCache.blockSize;
+        if (index != blockIndex) {
+            if (block == null) {
+                block = new byte[blockCache.blockSize];
+            }
+            boolean sequential = index == blockIndex + 1;
+            int cachedLength = blockCache.read(key(index), block);
+            blockLength = cachedLength >= 0 ? cachedLength : fetch(index, sequential ? readAheadBlocks : 0);
+            blockIndex = index;
+        }
+        return (int) (fileOffset - index * blockCache.blockSize);
+    }
+
+    // Reads the block and up to readAhead following ones with a single read, caches them and returns the
+    // length of the first.
+    private int fetch(long index, int readAhead) throws IOException {
+        long start = index * blockCache.blockSize;
+        long end = Math.min(fileLength, start + (long) (readAhead + 1) * blockCache.blockSize);
+        byte[] buffer = readAhead == 0 ? block : new byte[(int) (end - start)];
+        synchronized (delegate) {
+            delegate.seek(start);
+            delegate.readBytes(buffer, 0, (int) (end - start));
+        }
+        blockCache.bytesFetched.addAndGet(end - start);
+
+        for (long offset = start; offset < end; offset += blockCache.blockSize) {
+            int length = (int) Math.min(blockCache.blockSize, end - offset);
+            blockCache.put(key(offset / blockCache.blockSize), buffer, (int) (offset - start), length);
+        }
+        if (buffer != block) {
+            System.arraycopy(buffer, 0, block, 0, (int) Math.min(blockCache.blockSize, end - start));
+        }
+        return (int) Math.min(blockCache.blockSize, end - start);
+    }
+
+    private BlockCache.BlockKey key(long index) {
+        return new BlockCache.BlockKey(indexName, fileName, fileLength, index);
+    }
+
+    @Override
+    public long getFilePointer() {
+        return position;
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+        if (pos < 0 || pos > length) {
+            throw new EOFException("Seek past EOF: " + pos + " in " + this);
+        }
+        position = pos;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public IndexInput slice(String sliceDescription, long offset, long length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > this.length) {
+            throw new IllegalArgumentException("Slice out of bounds: offset=" + offset + ", length=" + length + " in " + this);
+        }
+        return new BlockCacheIndexInput(delegate, indexName, fileName, fileLength, blockCache, readAheadBlocks,
+                sliceOffset + offset, length, true, getFullSliceDescription(sliceDescription));
+    }
+
+    // Clones get their own block buffer on first read.
+    @Override
+    public BlockCacheIndexInput clone() {
+        BlockCacheIndexInput clone = new BlockCacheIndexInput(delegate, indexName, fileName, fileLength, blockCache,
+                readAheadBlocks, sliceOffset, length, true, toString());
+        clone.position = position;
+        return clone;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!isClone) {
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package dev.arseny.service;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+// A SearcherManager for a single index plus the bookkeeping needed by the searcher cache.
+class CachedSearcher {
+    final String indexName;
+    final Directory directory;
+    final SearcherManager manager;
+    // Null when the searcher reads the index on EFS directly.
+    final LocalReplica replica;
+
+    volatile long lastRefreshMillis;
+    volatile boolean refreshRequested;
+    // The refresh running in the background, guarded by this.
+    Future<?> refreshTask;
+    volatile long sizeInBytes;
+    // Set when the index no longer fits into local storage and must be read from EFS instead.
+    volatile boolean replicaOutgrown;
+
+    // Heap held by the warm pack the reader was opened with, as long as one of the segments opened from
+    // it is still part of the reader.
+    private long warmPackBytes;
+    private final Set<String> warmPackSegments = new HashSet<>();
+
+    CachedSearcher(String indexName, Directory directory, LocalReplica replica, SearcherManager manager,
+                   long warmPackBytes) throws IOException {
+        this.indexName = indexName;
+        this.directory = directory;
+        this.replica = replica;
+        this.manager = manager;
+        this.lastRefreshMillis = System.currentTimeMillis();
+        this.warmPackBytes = warmPackBytes;
+        if (warmPackBytes > 0) {
+            IndexSearcher searcher = manager.acquire();
+            try {
+                for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+                    warmPackSegments.add(Segments.name(leaf.reader()));
+                }
+            } finally {
+                manager.release(searcher);
+            }
+        }
+        this.sizeInBytes = computeSizeInBytes();
+    }
+
+    boolean needsRefresh(SearcherRefreshPolicy policy, long refreshIntervalMillis, long now) {
+        if (refreshRequested) {
+            return true;
+        }
+        switch (policy) {
+            case EVERY_REQUEST:
+                return true;
+            case INTERVAL:
+                return now - lastRefreshMillis >= refreshIntervalMillis;
+            default:
+                return false;
+        }
+    }
+
+    // Returns true if a new reader was opened. The new reader is synced, opened and warmed before the
+    // manager publishes it, queries acquire the previous one until then.
+    boolean refresh() throws IOException {
+        refreshRequested = false;
+        lastRefreshMillis = System.currentTimeMillis();
+        long version = currentVersion();
+        if (replica != null && !replica.sync()) {
+            replicaOutgrown = true;
+            return false;
+        }
+        manager.maybeRefreshBlocking();
+        if (version == currentVersion()) {
+            return false;
+        }
+        sizeInBytes = computeSizeInBytes();
+        return true;
+    }
+
+    long currentVersion() throws IOException {
+        IndexSearcher searcher = manager.acquire();
+        try {
+            return ((DirectoryReader) searcher.getIndexReader()).getVersion();
+        } finally {
+            manager.release(searcher);
+        }
+    }
+
+    // The footprint of an index is approximated by the size of its segment files, which are what end up
+    // mapped into memory once queries touch them, plus the heap copy of the warm pack while it is held.
+    private long computeSizeInBytes() throws IOException {
+        IndexSearcher searcher = manager.acquire();
+        try {
+            IndexReader reader = searcher.getIndexReader();
+            if (warmPackBytes > 0 && !holdsWarmPack(reader)) {
+                warmPackBytes = 0;
+                warmPackSegments.clear();
+            }
+            return Segments.sizeInBytes(reader) + warmPackBytes;
+        } finally {
+            manager.release(searcher);
+        }
+    }
+
+    // The packed files share one array, so any remaining segment opened from the pack keeps all of it.
+    private boolean holdsWarmPack(IndexReader reader) {
+        for (LeafReaderContext leaf : reader.leaves()) {
+            if (warmPackSegments.contains(Segments.name(leaf.reader()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
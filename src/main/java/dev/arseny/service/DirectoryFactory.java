@@ -0,0 +1,99 @@
+package dev.arseny.service;
+
+import dev.arseny.EnvUtils;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.jboss.logging.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+// Opens the directories of indexes on EFS. With BLOCK_CACHE_MAX_BYTES set, reads go through a block cache
+// shared by all indexes of the container, which keeps hot blocks local across invocations.
+@ApplicationScoped
+public class DirectoryFactory {
+    private static final Logger LOG = Logger.getLogger(DirectoryFactory.class);
+
+    private static final String MAX_DIRECT_MEMORY_OPTION = "-XX:MaxDirectMemorySize=";
+
+    protected long blockCacheMaxBytes = EnvUtils.getLong("BLOCK_CACHE_MAX_BYTES", 0);
+    protected int blockSize = EnvUtils.getInt("BLOCK_CACHE_BLOCK_SIZE", 32 * 1024);
+    protected int readAheadBlocks = EnvUtils.getInt("BLOCK_CACHE_READ_AHEAD_BLOCKS", 4);
+
+    private BlockCache blockCache;
+
+    public Directory open(String indexName) throws IOException {
+        Directory directory = FSDirectory.open(Paths.get(IndexConstants.LUCENE_INDEX_ROOT_DIRECTORY + indexName));
+        BlockCache cache = getBlockCache();
+        return cache != null ? new BlockCacheDirectory(directory, indexName, cache, readAheadBlocks) : directory;
+    }
+
+    // Adds the hit, miss, eviction and fetched byte counts of the block cache to the request, if it is enabled.
+    public void recordBlockCacheCounts(RequestMetrics requestMetrics) {
+        BlockCache cache = getBlockCache();
+        if (cache != null) {
+            cache.report(requestMetrics);
+        }
+    }
+
+    private synchronized BlockCache getBlockCache() {
+        if (blockCache == null && blockCacheMaxBytes > 0) {
+            long maxBytes = blockCacheMaxBytes;
+            long directMemory = directMemoryLimit(jvmArguments(), Runtime.getRuntime().maxMemory());
+            if (maxBytes > directMemory / 2) {
+                maxBytes = directMemory / 2;
+                LOG.warn("BLOCK_CACHE_MAX_BYTES is more than half of the " + directMemory
+                        + " bytes of direct memory, capping the block cache at " + maxBytes + " bytes");
+            }
+            blockCache = new BlockCache(maxBytes, blockSize);
+            LOG.info("Created block cache of " + maxBytes + " bytes with " + blockSize + " byte blocks");
+        }
+        return blockCache;
+    }
+
+    // Direct buffers are limited by -XX:MaxDirectMemorySize, which defaults to the maximum heap size. The
+    // block cache takes at most half of it, since NIO reads of index files need direct buffers as well.
+    static long directMemoryLimit(List<String> jvmArguments, long maxMemory) {
+        long limit = maxMemory;
+        for (String argument : jvmArguments) {
+            if (argument.startsWith(MAX_DIRECT_MEMORY_OPTION)) {
+                limit = parseSize(argument.substring(MAX_DIRECT_MEMORY_OPTION.length()));
+            }
+        }
+        return limit > 0 ? limit : maxMemory;
+    }
+
+    // Sizes like 512m, as the JVM accepts them.
+    private static long parseSize(String size) {
+        String digits = size.trim().toLowerCase(Locale.ROOT);
+        long unit = 1;
+        if (digits.endsWith("k")) {
+            unit = 1024;
+        } else if (digits.endsWith("m")) {
+            unit = 1024 * 1024;
+        } else if (digits.endsWith("g")) {
+            unit = 1024 * 1024 * 1024;
+        }
+        if (unit > 1) {
+            digits = digits.substring(0, digits.length() - 1);
+        }
+        try {
+            return Long.parseLong(digits) * unit;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static List<String> jvmArguments() {
+        try {
+            return ManagementFactory.getRuntimeMXBean().getInputArguments();
+        } catch (RuntimeException e) {
+            return Collections.emptyList();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package dev.arseny.service;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import dev.arseny.model.FieldMapping;
+import dev.arseny.model.IndexMapping;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DoubleDocValuesField;
+import org.apache.lucene.document.DoublePoint;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.util.BytesRef;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+
+// Turns JSON values into Lucene fields according to the mapping of an index. Values are read straight
+// from the parser's current token, so numbers are indexed without being boxed or printed first.
+class DocumentBuilder {
+    private static final Logger LOG = Logger.getLogger(DocumentBuilder.class);
+
+    static final String UUID_FIELD = "uuid";
+
+    // UUIDs must be Strings so they can be exactly matched for deletion by Term later on.
+    private static final FieldType UUID_FIELD_TYPE = new FieldType();
+
+    static {
+        UUID_FIELD_TYPE.setTokenized(false);
+        UUID_FIELD_TYPE.setStored(true);
+        UUID_FIELD_TYPE.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+        UUID_FIELD_TYPE.freeze();
+    }
+
+    private final IndexMapping mapping;
+
+    DocumentBuilder(IndexMapping mapping) {
+        this.mapping = mapping;
+    }
+
+    // Adds the scalar value the parser is positioned on.
+    void addField(Document document, String name, JsonParser parser) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.VALUE_NULL) {
+            return;
+        }
+
+        FieldMapping fieldMapping = mapping.mappingFor(name);
+        if (UUID_FIELD.equals(name) || !fieldMapping.getType().isNumeric()) {
+            addText(document, name, parser.getText());
+            return;
+        }
+
+        try {
+            switch (fieldMapping.getType()) {
+                case LONG:
+                    addLong(document, name, fieldMapping, token == JsonToken.VALUE_NUMBER_INT
+                            ? parser.getLongValue() : Long.parseLong(parser.getText().trim()));
+                    break;
+                case DOUBLE:
+                    addDouble(document, name, fieldMapping, token.isNumeric()
+                            ? parser.getDoubleValue() : Double.parseDouble(parser.getText().trim()));
+                    break;
+                case DATE:
+                    long millis = token == JsonToken.VALUE_NUMBER_INT
+                            ? parser.getLongValue() : MappingQueries.parseDate(parser.getText());
+                    addLong(document, name, fieldMapping, millis);
+                    break;
+                default:
+                    throw new IllegalStateException();
+            }
+        } catch (IllegalArgumentException e) {
+            // NumberFormatException and DateTimeParseException end up here, a bad value shouldn't fail the batch.
+            LOG.warn("Skipping value of field " + name + " that doesn't match its mapping: " + parser.getText());
+        }
+    }
+
+    // Returns the doc values field that updates a field in place to the value the parser is positioned on,
+    // or null if the field can't be updated. Points and stored fields can't be changed without
+    // reindexing the document, so only numeric fields mapped with doc values alone can.
+    Field updateField(String name, JsonParser parser) throws IOException {
+        FieldMapping fieldMapping = mapping.mappingFor(name);
+        if (UUID_FIELD.equals(name) || !fieldMapping.getType().isNumeric() || !fieldMapping.hasDocValues()
+                || fieldMapping.isIndexed() || fieldMapping.isStored()) {
+            LOG.warn("Skipping update of field " + name + ", only numeric doc values fields that are neither"
+                    + " indexed nor stored can be updated");
+            return null;
+        }
+
+        JsonToken token = parser.currentToken();
+        try {
+            switch (fieldMapping.getType()) {
+                case LONG:
+                    return new NumericDocValuesField(name, token == JsonToken.VALUE_NUMBER_INT
+                            ? parser.getLongValue() : Long.parseLong(parser.getText().trim()));
+                case DOUBLE:
+                    return new DoubleDocValuesField(name, token.isNumeric()
+                            ? parser.getDoubleValue() : Double.parseDouble(parser.getText().trim()));
+                case DATE:
+                    return new NumericDocValuesField(name, token == JsonToken.VALUE_NUMBER_INT
+                            ? parser.getLongValue() : MappingQueries.parseDate(parser.getText()));
+                default:
+                    throw new IllegalStateException();
+            }
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Skipping update of field " + name + " that doesn't match its mapping: " + parser.getText());
+            return null;
+        }
+    }
+
+    void addText(Document document, String name, String value) {
+        if (UUID_FIELD.equals(name)) {
+            document.add(new Field(name, value, UUID_FIELD_TYPE));
+            return;
+        }
+
+        FieldMapping fieldMapping = mapping.mappingFor(name);
+        switch (fieldMapping.getType()) {
+            case KEYWORD:
+                BytesRef bytes = new BytesRef(value);
+                if (bytes.length > IndexWriter.MAX_TERM_LENGTH && (fieldMapping.isIndexed() || fieldMapping.hasDocValues())) {
+                    // Lucene rejects the whole document for a term this long, only the value is skipped.
+                    LOG.warn("Skipping value of keyword field " + name + " that is longer than "
+                            + IndexWriter.MAX_TERM_LENGTH + " bytes");
+                    break;
+                }
+                if (fieldMapping.hasDocValues()) {
+                    document.add(new SortedSetDocValuesField(name, bytes));
+                }
+                if (fieldMapping.isIndexed()) {
+                    document.add(new StringField(name, value, fieldMapping.isStored() ? Field.Store.YES : Field.Store.NO));
+                } else if (fieldMapping.isStored()) {
+                    document.add(new StoredField(name, value));
+                }
+                break;
+            case STORED:
+                document.add(new StoredField(name, value));
+                break;
+            case TEXT:
+                if (fieldMapping.isIndexed()) {
+                    document.add(new TextField(name, value, fieldMapping.isStored() ? Field.Store.YES : Field.Store.NO));
+                } else if (fieldMapping.isStored()) {
+                    document.add(new StoredField(name, value));
+                }
+                break;
+            default:
+                LOG.warn("Skipping non-scalar value of numeric field " + name);
+        }
+    }
+
+    // Numeric doc values hold a single value per document, further values are only indexed and stored.
+    private void addLong(Document document, String name, FieldMapping fieldMapping, long value) {
+        boolean firstValue = document.getField(name) == null;
+        if (fieldMapping.isIndexed()) {
+            document.add(new LongPoint(name, value));
+        }
+        if (fieldMapping.isStored()) {
+            document.add(new StoredField(name, value));
+        }
+        if (fieldMapping.hasDocValues() && firstValue) {
+            document.add(new NumericDocValuesField(name, value));
+        }
+    }
+
+    private void addDouble(Document document, String name, FieldMapping fieldMapping, double value) {
+        boolean firstValue = document.getField(name) == null;
+        if (fieldMapping.isIndexed()) {
+            document.add(new DoublePoint(name, value));
+        }
+        if (fieldMapping.isStored()) {
+            document.add(new StoredField(name, value));
+        }
+        if (fieldMapping.hasDocValues() && firstValue) {
+            document.add(new DoubleDocValuesField(name, value));
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package dev.arseny.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.search.BulkScorer;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorable;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Base64;
+import java.util.List;
+
+// Walks all matches of a query in index order, one page at a time, and writes their stored fields as
+// newline-delimited JSON. Matches are neither scored nor ranked, so a page costs the same whether it is
+// the first or the thousandth, and memory only grows with the page size.
+//
+// The cursor names the commit the export started on and the segment and doc id of the last exported
+// document. Every page reads that same commit, so documents that were merged, updated or added in the
+// meantime are neither exported twice nor missed. Once the commit was deleted, the cursor has expired
+// and the export must start over.
+public class DocumentExporter {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    // Documents are separated by the newlines written after them, not by Jackson's default space.
+    private static final JsonFactory NDJSON_FACTORY = new JsonFactory().setRootValueSeparator(null);
+
+    public static class Page {
+        public final String body;
+        public final int documents;
+        // Null once all matches were exported.
+        public final String nextCursor;
+
+        Page(String body, int documents, String nextCursor) {
+            this.body = body;
+            this.documents = documents;
+            this.nextCursor = nextCursor;
+        }
+    }
+
+    public static Page export(IndexSearcher searcher, Query query, List<String> fields, int size, String cursor)
+            throws IOException {
+        long generation = ((DirectoryReader) searcher.getIndexReader()).getIndexCommit().getGeneration();
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        int startLeaf = 0;
+        int startDoc = 0;
+        if (cursor != null) {
+            JsonNode node = decode(cursor);
+            if (node.get("gen").asLong() != generation) {
+                throw new IllegalArgumentException("Export cursor doesn't belong to the commit being read");
+            }
+            startLeaf = findLeaf(leaves, node.get("seg").asText(), node.get("ord").asInt());
+            startDoc = node.get("doc").asInt() + 1;
+        }
+
+        Weight weight = searcher.createWeight(searcher.rewrite(query), ScoreMode.COMPLETE_NO_SCORES, 1);
+        StringWriter body = new StringWriter();
+        int[] docs = new int[Math.min(size, 4096)];
+        int exported = 0;
+        String nextCursor = null;
+
+        try (JsonGenerator generator = NDJSON_FACTORY.createGenerator(body)) {
+            JsonFieldsVisitor visitor = new JsonFieldsVisitor(generator, fields);
+            exportLeaves:
+            for (int ord = startLeaf; ord < leaves.size() && exported < size; ord++) {
+                LeafReaderContext leaf = leaves.get(ord);
+                int minDoc = ord == startLeaf ? startDoc : 0;
+                BulkScorer scorer = weight.bulkScorer(leaf);
+                if (scorer == null || minDoc >= leaf.reader().maxDoc()) {
+                    continue;
+                }
+                StoredFields storedFields = leaf.reader().storedFields();
+                Bits liveDocs = leaf.reader().getLiveDocs();
+
+                // Matches are collected in doc id order, in chunks so stored fields are read sequentially.
+                while (exported < size && minDoc < leaf.reader().maxDoc()) {
+                    int limit = Math.min(docs.length, size - exported);
+                    DocCollector collector = new DocCollector(docs, limit);
+                    try {
+                        scorer.score(collector, liveDocs, minDoc, leaf.reader().maxDoc());
+                    } catch (CollectionTerminatedException e) {
+                        // The chunk is full.
+                    }
+                    if (collector.count == 0) {
+                        break;
+                    }
+
+                    for (int i = 0; i < collector.count; i++) {
+                        visitor.writeDocument(storedFields, docs[i]);
+                        generator.writeRaw('\n');
+                    }
+                    exported += collector.count;
+                    minDoc = docs[collector.count - 1] + 1;
+
+                    if (exported == size) {
+                        nextCursor = encode(generation, leaf, ord, docs[collector.count - 1]);
+                        break exportLeaves;
+                    }
+                    if (collector.count < limit) {
+                        break;
+                    }
+                }
+            }
+        }
+        return new Page(body.toString(), exported, nextCursor);
+    }
+
+    // Collects up to limit doc ids, then stops the bulk scorer.
+    private static class DocCollector implements LeafCollector {
+        final int[] docs;
+        final int limit;
+        int count;
+
+        DocCollector(int[] docs, int limit) {
+            this.docs = docs;
+            this.limit = limit;
+        }
+
+        @Override
+        public void setScorer(Scorable scorer) {
+        }
+
+        @Override
+        public void collect(int doc) {
+            if (count == limit) {
+                throw new CollectionTerminatedException();
+            }
+            docs[count++] = doc;
+        }
+    }
+
+    // Returns the generation of the commit an export cursor reads.
+    public static long generation(String cursor) {
+        return decode(cursor).get("gen").asLong();
+    }
+
+    // The commit is the same for every page, so the segment is still at its position.
+    private static int findLeaf(List<LeafReaderContext> leaves, String segmentName, int ord) {
+        if (ord < leaves.size() && segmentName.equals(Segments.name(leaves.get(ord).reader()))) {
+            return ord;
+        }
+        throw new IllegalArgumentException("Invalid export cursor");
+    }
+
+    private static String encode(long generation, LeafReaderContext leaf, int ord, int doc) {
+        ObjectNode node = MAPPER.createObjectNode();
+        node.put("gen", generation);
+        node.put("seg", Segments.name(leaf.reader()));
+        node.put("ord", ord);
+        node.put("doc", doc);
+        try {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(MAPPER.writeValueAsBytes(node));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static JsonNode decode(String cursor) {
+        JsonNode node;
+        try {
+            node = MAPPER.readTree(Base64.getUrlDecoder().decode(cursor));
+        } catch (IOException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid export cursor");
+        }
+        if (node == null || !node.path("gen").isIntegralNumber() || !node.path("seg").isTextual()
+                || !node.path("ord").isInt() || !node.path("doc").isInt()) {
+            throw new IllegalArgumentException("Invalid export cursor");
+        }
+        return node;
+    }
+}
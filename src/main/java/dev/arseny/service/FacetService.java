@@ -0,0 +1,146 @@
+package dev.arseny.service;
+
+import dev.arseny.model.FacetBucket;
+import dev.arseny.model.FacetRange;
+import dev.arseny.model.FacetRequest;
+import dev.arseny.model.FieldMapping;
+import dev.arseny.model.IndexMapping;
+import dev.arseny.model.MappingType;
+import org.apache.lucene.facet.FacetResult;
+import org.apache.lucene.facet.Facets;
+import org.apache.lucene.facet.FacetsCollector;
+import org.apache.lucene.facet.LabelAndValue;
+import org.apache.lucene.facet.LongValueFacetCounts;
+import org.apache.lucene.facet.StringDocValuesReaderState;
+import org.apache.lucene.facet.StringValueFacetCounts;
+import org.apache.lucene.facet.range.DoubleRange;
+import org.apache.lucene.facet.range.DoubleRangeFacetCounts;
+import org.apache.lucene.facet.range.LongRange;
+import org.apache.lucene.facet.range.LongRangeFacetCounts;
+import org.apache.lucene.index.IndexReader;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Counts facets from the doc values of the documents collected by a FacetsCollector during the search,
+// so the counts of all facets come out of the same pass over the matching documents as the hits.
+@ApplicationScoped
+public class FacetService {
+    public static final int DEFAULT_FACET_SIZE = 10;
+
+    // Mapping segment ordinals to global ones is costly for large keyword fields, so it is built once
+    // per reader and field, and dropped when the reader is closed.
+    private final Map<IndexReader.CacheKey, Map<String, StringDocValuesReaderState>> readerStates = new ConcurrentHashMap<>();
+
+    // Fails with IllegalArgumentException before searching if a facet can't be counted.
+    public static void validate(IndexMapping mapping, List<FacetRequest> facetRequests) {
+        List<String> names = new ArrayList<>();
+        for (FacetRequest facetRequest : facetRequests) {
+            String field = facetRequest.getField();
+            if (field == null) {
+                throw new IllegalArgumentException("Missing facet field");
+            }
+            if (names.contains(facetRequest.getName())) {
+                throw new IllegalArgumentException("Duplicate facet " + facetRequest.getName());
+            }
+            names.add(facetRequest.getName());
+
+            FieldMapping fieldMapping = mapping.mappingFor(field);
+            if (!fieldMapping.hasDocValues()) {
+                throw new IllegalArgumentException("Field " + field + " can't be faceted on, it has no doc values");
+            }
+            if (facetRequest.getRanges() != null) {
+                if (facetRequest.getRanges().isEmpty() || !fieldMapping.getType().isNumeric()) {
+                    throw new IllegalArgumentException("Range facets need ranges and a numeric or date field, got " + field);
+                }
+            } else {
+                if (facetRequest.getSize() != null && facetRequest.getSize() < 1) {
+                    throw new IllegalArgumentException("Facet size must be at least 1");
+                }
+                // Double doc values hold raw IEEE bits, which can't be counted as distinct values.
+                if (fieldMapping.getType() == MappingType.DOUBLE) {
+                    throw new IllegalArgumentException("Field " + field + " can only be faceted on by ranges");
+                }
+            }
+        }
+    }
+
+    public Map<String, List<FacetBucket>> count(IndexReader reader, IndexMapping mapping, List<FacetRequest> facetRequests,
+                                                FacetsCollector hits) throws IOException {
+        Map<String, List<FacetBucket>> facets = new LinkedHashMap<>();
+        for (FacetRequest facetRequest : facetRequests) {
+            String field = facetRequest.getField();
+            FieldMapping fieldMapping = mapping.mappingFor(field);
+
+            FacetResult result;
+            if (facetRequest.getRanges() != null) {
+                result = rangeFacets(facetRequest, fieldMapping, hits).getAllChildren(field);
+            } else {
+                int size = facetRequest.getSize() != null ? facetRequest.getSize() : DEFAULT_FACET_SIZE;
+                Facets counts = fieldMapping.getType().isNumeric()
+                        ? new LongValueFacetCounts(field, hits)
+                        : new StringValueFacetCounts(readerState(reader, field), hits);
+                result = counts.getTopChildren(size, field);
+            }
+
+            List<FacetBucket> buckets = new ArrayList<>();
+            if (result != null) {
+                for (LabelAndValue labelAndValue : result.labelValues) {
+                    buckets.add(new FacetBucket(labelAndValue.label, labelAndValue.value.longValue()));
+                }
+            }
+            facets.put(facetRequest.getName(), buckets);
+        }
+        return facets;
+    }
+
+    private static Facets rangeFacets(FacetRequest facetRequest, FieldMapping fieldMapping, FacetsCollector hits) throws IOException {
+        String field = facetRequest.getField();
+        List<FacetRange> ranges = facetRequest.getRanges();
+
+        if (fieldMapping.getType() == MappingType.DOUBLE) {
+            DoubleRange[] doubleRanges = new DoubleRange[ranges.size()];
+            for (int i = 0; i < ranges.size(); i++) {
+                FacetRange range = ranges.get(i);
+                double min = range.getFrom() == null ? Double.NEGATIVE_INFINITY : MappingQueries.parseDouble(field, range.getFrom());
+                double max = range.getTo() == null ? Double.POSITIVE_INFINITY : MappingQueries.parseDouble(field, range.getTo());
+                doubleRanges[i] = new DoubleRange(range.getLabel(), min, true, max, range.getTo() == null);
+            }
+            return new DoubleRangeFacetCounts(field, hits, doubleRanges);
+        }
+
+        LongRange[] longRanges = new LongRange[ranges.size()];
+        for (int i = 0; i < ranges.size(); i++) {
+            FacetRange range = ranges.get(i);
+            long min = range.getFrom() == null ? Long.MIN_VALUE : MappingQueries.parseLong(fieldMapping.getType(), field, range.getFrom());
+            long max = range.getTo() == null ? Long.MAX_VALUE : MappingQueries.parseLong(fieldMapping.getType(), field, range.getTo());
+            longRanges[i] = new LongRange(range.getLabel(), min, true, max, range.getTo() == null);
+        }
+        return new LongRangeFacetCounts(field, hits, longRanges);
+    }
+
+    private StringDocValuesReaderState readerState(IndexReader reader, String field) throws IOException {
+        IndexReader.CacheHelper cacheHelper = reader.getReaderCacheHelper();
+        if (cacheHelper == null) {
+            return new StringDocValuesReaderState(reader, field);
+        }
+
+        Map<String, StringDocValuesReaderState> states = readerStates.computeIfAbsent(cacheHelper.getKey(), key -> {
+            cacheHelper.addClosedListener(readerStates::remove);
+            return new ConcurrentHashMap<>();
+        });
+
+        StringDocValuesReaderState state = states.get(field);
+        if (state == null) {
+            // Two searches may both build the state of a field, either one is fine to keep.
+            state = new StringDocValuesReaderState(reader, field);
+            states.put(field, state);
+        }
+        return state;
+    }
+}
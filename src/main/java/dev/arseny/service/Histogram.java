@@ -0,0 +1,66 @@
+package dev.arseny.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// A lock-free histogram of positive values, e.g. durations in microseconds. Buckets grow by a factor of
+// 2^(1/4), so percentiles are reported within 19% of the recorded values in constant memory.
+public class Histogram {
+    private static final int BUCKETS_PER_POWER_OF_TWO = 4;
+    private static final int BUCKET_COUNT = 64 * BUCKETS_PER_POWER_OF_TWO;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        value = Math.max(1, value);
+        buckets.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        long currentMax;
+        while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+            // Retry until the larger value is stored.
+        }
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    // Returns the upper bound of the bucket holding the given percentile (0-100), at most the maximum.
+    public long percentile(double percentile) {
+        long n = count.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(max.get(), upperBound(i));
+            }
+        }
+        return max.get();
+    }
+
+    private static int bucket(long value) {
+        return Math.min(BUCKET_COUNT - 1, (int) (Math.log(value) / Math.log(2) * BUCKETS_PER_POWER_OF_TWO));
+    }
+
+    private static long upperBound(int bucket) {
+        return (long) Math.ceil(Math.pow(2, (double) (bucket + 1) / BUCKETS_PER_POWER_OF_TWO));
+    }
+}
@@ -0,0 +1,89 @@
+package dev.arseny.service;
+
+import dev.arseny.EnvUtils;
+import org.apache.lucene.search.Query;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// Counts the queries each index receives, so new searchers can be warmed with the most frequent ones.
+// Every index keeps at most HOT_QUERIES_MAX_TRACKED queries, a new query replaces the least frequent one.
+@ApplicationScoped
+public class HotQueries {
+    protected int maxTracked = EnvUtils.getInt("HOT_QUERIES_MAX_TRACKED", 100);
+
+    private final Map<String, Map<String, HotQuery>> queriesByIndex = new HashMap<>();
+
+    private static class HotQuery {
+        final Query query;
+        long count;
+
+        HotQuery(Query query) {
+            this.query = query;
+        }
+    }
+
+    // The query may be null when it wasn't parsed, e.g. for cached results. It then only counts for a query
+    // that is already tracked.
+    public void record(String indexName, String queryText, Query query) {
+        if (maxTracked <= 0) {
+            return;
+        }
+        synchronized (queriesByIndex) {
+            Map<String, HotQuery> queries = queriesByIndex.get(indexName);
+            if (queries == null) {
+                queries = new HashMap<>();
+                queriesByIndex.put(indexName, queries);
+            }
+            HotQuery hotQuery = queries.get(queryText);
+            if (hotQuery == null) {
+                if (query == null) {
+                    return;
+                }
+                if (queries.size() >= maxTracked) {
+                    removeLeastFrequent(queries);
+                }
+                hotQuery = new HotQuery(query);
+                queries.put(queryText, hotQuery);
+            }
+            hotQuery.count++;
+        }
+    }
+
+    // Returns the most frequent queries of the index, most frequent first.
+    public List<Query> top(String indexName, int count) {
+        List<HotQuery> hotQueries;
+        synchronized (queriesByIndex) {
+            Map<String, HotQuery> queries = queriesByIndex.get(indexName);
+            if (queries == null) {
+                return new ArrayList<>();
+            }
+            hotQueries = new ArrayList<>(queries.values());
+            hotQueries.sort((a, b) -> Long.compare(b.count, a.count));
+        }
+
+        List<Query> top = new ArrayList<>();
+        for (int i = 0; i < Math.min(count, hotQueries.size()); i++) {
+            top.add(hotQueries.get(i).query);
+        }
+        return top;
+    }
+
+    private static void removeLeastFrequent(Map<String, HotQuery> queries) {
+        Iterator<Map.Entry<String, HotQuery>> iterator = queries.entrySet().iterator();
+        Map.Entry<String, HotQuery> leastFrequent = null;
+        while (iterator.hasNext()) {
+            Map.Entry<String, HotQuery> entry = iterator.next();
+            if (leastFrequent == null || entry.getValue().count < leastFrequent.getValue().count) {
+                leastFrequent = entry;
+            }
+        }
+        if (leastFrequent != null) {
+            queries.remove(leastFrequent.getKey());
+        }
+    }
+}
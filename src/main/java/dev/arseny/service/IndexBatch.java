@@ -0,0 +1,74 @@
+package dev.arseny.service;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// The Lucene documents decoded from one index request of an SQS message.
+class IndexBatch {
+    final String indexName;
+    final long payloadBytes;
+    final DocumentBuilder documentBuilder;
+    // The position of the message in the SQS batch, to report it as failed.
+    int message;
+    // Documents without a uuid, which are always added.
+    final List<Document> documents = new ArrayList<>();
+    // The last write per uuid: the document replacing the indexed one, or null to delete it.
+    final Map<String, Document> changes = new LinkedHashMap<>();
+    // Doc values updates per uuid and field, for uuids without a write in changes.
+    final Map<String, Map<String, Field>> updates = new LinkedHashMap<>();
+    // Documents, deletes and updates read, before writes to the same uuid were collapsed.
+    int decoded;
+
+    // False for a header that is followed by newline-delimited documents.
+    boolean hasDocumentsArray;
+
+    // Maintenance commands, applied after the documents of the request.
+    Integer forceMergeMaxSegments;
+    String snapshot;
+    String releaseSnapshot;
+    boolean deleteAll;
+
+    IndexBatch(String indexName, long payloadBytes, DocumentBuilder documentBuilder) {
+        this.indexName = indexName;
+        this.payloadBytes = payloadBytes;
+        this.documentBuilder = documentBuilder;
+    }
+
+    boolean hasCommands() {
+        return forceMergeMaxSegments != null || snapshot != null || releaseSnapshot != null || deleteAll;
+    }
+
+    int size() {
+        return decoded;
+    }
+
+    // Records a document replacing the one with the uuid, or its delete with null. Earlier doc values
+    // updates of the uuid are overwritten by it.
+    static void write(Map<String, Document> changes, Map<String, Map<String, Field>> updates, String uuid,
+                      Document document) {
+        updates.remove(uuid);
+        changes.put(uuid, document);
+    }
+
+    // Records doc values updates of a uuid. A document written earlier gets the new values before it
+    // is indexed, and a deleted one has nothing left to update.
+    static void update(Map<String, Document> changes, Map<String, Map<String, Field>> updates, String uuid,
+                       Map<String, Field> fields) {
+        if (changes.containsKey(uuid)) {
+            Document document = changes.get(uuid);
+            if (document != null) {
+                for (Field field : fields.values()) {
+                    document.removeFields(field.name());
+                    document.add(field);
+                }
+            }
+            return;
+        }
+        updates.computeIfAbsent(uuid, key -> new LinkedHashMap<>()).putAll(fields);
+    }
+}
@@ -1,5 +1,16 @@
 package dev.arseny.service;
 
+import dev.arseny.EnvUtils;
+
 public class IndexConstants {
-    public static final String LUCENE_INDEX_ROOT_DIRECTORY = "/mnt/data/";
+    // The EFS mount point in the functions, benchmarks and local runs point it at a temporary directory.
+    public static final String LUCENE_INDEX_ROOT_DIRECTORY = withTrailingSlash(
+            EnvUtils.getString("LUCENE_INDEX_ROOT_DIRECTORY", "/mnt/data/"));
+
+    // Soft deleted documents have the time of their delete in this doc values field.
+    public static final String SOFT_DELETES_FIELD = "__soft_deletes";
+
+    private static String withTrailingSlash(String directory) {
+        return directory.endsWith("/") ? directory : directory + "/";
+    }
 }
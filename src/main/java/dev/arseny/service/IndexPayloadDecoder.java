@@ -0,0 +1,260 @@
+package dev.arseny.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+// Decodes index payloads from the JSON token stream straight into Lucene documents.
+//
+// A payload is a sequence of top-level objects. An object with "indexName" and "documents" is a
+// regular index request, and several of them may follow each other. An object with "indexName" but
+// without "documents" is a header: every object after it is a document for that index, which lets
+// a single message carry newline-delimited documents:
+//
+//   {"indexName": "books"}
+//   {"uuid": "1", "name": "Foundation"}
+//   {"uuid": "2", "name": "I, Robot"}
+//
+// Documents with a uuid replace the indexed document with the same uuid, and "deleted": true deletes it.
+// "updates" holds partial updates, objects with a uuid and new values of numeric doc values fields,
+// which are changed in place without reindexing the document:
+//
+//   {"indexName": "books", "updates": [{"uuid": "1", "popularity": 42}]}
+//
+// When a request writes the same uuid several times, only the last write is kept, with the updates
+// after it applied.
+//
+// A request may also carry maintenance commands for its index: "forceMerge" with the maximum number
+// of segments, "snapshot" and "releaseSnapshot" with a snapshot name, and "deleteAll": true.
+class IndexPayloadDecoder {
+    private static final Logger LOG = Logger.getLogger(IndexPayloadDecoder.class);
+
+    private static final String DELETED_FIELD = "deleted";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final JsonFactory JSON_FACTORY = MAPPER.getFactory();
+
+    // Returns the document builder for the mapping of an index.
+    private final Function<String, DocumentBuilder> documentBuilders;
+
+    IndexPayloadDecoder(Function<String, DocumentBuilder> documentBuilders) {
+        this.documentBuilders = documentBuilders;
+    }
+
+    List<IndexBatch> decode(String payload) {
+        List<IndexBatch> batches = new ArrayList<>();
+
+        try (JsonParser parser = JSON_FACTORY.createParser(payload)) {
+            IndexBatch documentStream = null;
+            JsonToken token;
+
+            while ((token = parser.nextToken()) != null) {
+                if (token != JsonToken.START_OBJECT) {
+                    throw new IOException("Expected a JSON object but found " + token);
+                }
+
+                if (documentStream != null) {
+                    readDocument(parser, documentStream);
+                    continue;
+                }
+
+                // The payload size is accounted to the first request of the message.
+                IndexBatch batch = readRequest(parser, batches.isEmpty() ? payload.length() : 0);
+                batches.add(batch);
+                if (!batch.hasDocumentsArray) {
+                    documentStream = batch;
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to parse list of Index Requests in body", e);
+        }
+
+        return batches;
+    }
+
+    private IndexBatch readRequest(JsonParser parser, long payloadBytes) throws IOException {
+        String indexName = null;
+        TokenBuffer bufferedDocuments = null;
+        TokenBuffer bufferedUpdates = null;
+        IndexBatch batch = null;
+        Integer forceMergeMaxSegments = null;
+        String snapshot = null;
+        String releaseSnapshot = null;
+        boolean deleteAll = false;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            parser.nextToken();
+
+            if ("indexName".equals(fieldName)) {
+                indexName = parser.getValueAsString();
+            } else if ("documents".equals(fieldName)) {
+                if (indexName == null) {
+                    // Documents can only be decoded once the index is known, keep their tokens until then.
+                    bufferedDocuments = new TokenBuffer(parser);
+                    bufferedDocuments.copyCurrentStructure(parser);
+                } else {
+                    batch = new IndexBatch(indexName, payloadBytes, documentBuilders.apply(indexName));
+                    readDocuments(parser, batch);
+                }
+            } else if ("updates".equals(fieldName)) {
+                // Updates apply after the documents of the request, wherever they are in the object.
+                bufferedUpdates = new TokenBuffer(parser);
+                bufferedUpdates.copyCurrentStructure(parser);
+            } else if ("forceMerge".equals(fieldName)) {
+                if (!parser.currentToken().isNumeric() || parser.getIntValue() < 1) {
+                    throw new IOException("Expected forceMerge to be a positive number of segments");
+                }
+                forceMergeMaxSegments = parser.getIntValue();
+            } else if ("snapshot".equals(fieldName)) {
+                snapshot = parser.getValueAsString();
+            } else if ("releaseSnapshot".equals(fieldName)) {
+                releaseSnapshot = parser.getValueAsString();
+            } else if ("deleteAll".equals(fieldName)) {
+                deleteAll = parser.getValueAsBoolean();
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        if (indexName == null) {
+            throw new IOException("Index request without indexName");
+        }
+        if (batch == null) {
+            batch = new IndexBatch(indexName, payloadBytes, documentBuilders.apply(indexName));
+        }
+        if (bufferedDocuments != null) {
+            try (JsonParser bufferedParser = bufferedDocuments.asParser()) {
+                bufferedParser.nextToken();
+                readDocuments(bufferedParser, batch);
+            }
+        }
+        if (bufferedUpdates != null) {
+            try (JsonParser bufferedParser = bufferedUpdates.asParser()) {
+                bufferedParser.nextToken();
+                readUpdates(bufferedParser, batch);
+            }
+        }
+        batch.forceMergeMaxSegments = forceMergeMaxSegments;
+        batch.snapshot = snapshot;
+        batch.releaseSnapshot = releaseSnapshot;
+        batch.deleteAll = deleteAll;
+        return batch;
+    }
+
+    private void readDocuments(JsonParser parser, IndexBatch batch) throws IOException {
+        batch.hasDocumentsArray = true;
+        if (parser.currentToken() == JsonToken.VALUE_NULL) {
+            return;
+        }
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            throw new IOException("Expected documents to be an array");
+        }
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            readDocument(parser, batch);
+        }
+    }
+
+    private void readUpdates(JsonParser parser, IndexBatch batch) throws IOException {
+        batch.hasDocumentsArray = true;
+        if (parser.currentToken() == JsonToken.VALUE_NULL) {
+            return;
+        }
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            throw new IOException("Expected updates to be an array");
+        }
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            readUpdate(parser, batch);
+        }
+    }
+
+    // Reads one partial update: the uuid of the document and the new values of its fields.
+    private void readUpdate(JsonParser parser, IndexBatch batch) throws IOException {
+        String uuid = null;
+        Map<String, Field> fields = new LinkedHashMap<>();
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+
+            if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY || token == JsonToken.VALUE_NULL) {
+                LOG.warn("Skipping update of field " + fieldName + ", only single values can be updated");
+                parser.skipChildren();
+            } else if (DocumentBuilder.UUID_FIELD.equals(fieldName)) {
+                uuid = parser.getText();
+            } else {
+                Field field = batch.documentBuilder.updateField(fieldName, parser);
+                if (field != null) {
+                    fields.put(fieldName, field);
+                }
+            }
+        }
+
+        if (uuid == null) {
+            LOG.warn("Skipping update without uuid");
+            return;
+        }
+        batch.decoded++;
+        if (!fields.isEmpty()) {
+            IndexBatch.update(batch.changes, batch.updates, uuid, fields);
+        }
+    }
+
+    // Reads one document object. Documents marked with "deleted": true delete their uuid.
+    private void readDocument(JsonParser parser, IndexBatch batch) throws IOException {
+        DocumentBuilder documentBuilder = batch.documentBuilder;
+        Document document = new Document();
+        String uuid = null;
+        boolean deleted = false;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+
+            switch (token) {
+                case VALUE_NULL:
+                    // Skip missing or invalid values, nulls aren't allowed in Lucene fields.
+                    LOG.warn("Encountered null value in document field: " + fieldName);
+                    break;
+                case START_ARRAY:
+                    while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                        if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                            documentBuilder.addText(document, fieldName, MAPPER.readTree(parser).toString());
+                        } else {
+                            documentBuilder.addField(document, fieldName, parser);
+                        }
+                    }
+                    break;
+                case START_OBJECT:
+                    documentBuilder.addText(document, fieldName, MAPPER.readTree(parser).toString());
+                    break;
+                default:
+                    if (DocumentBuilder.UUID_FIELD.equals(fieldName)) {
+                        uuid = parser.getText();
+                    } else if (DELETED_FIELD.equals(fieldName) && token == JsonToken.VALUE_TRUE) {
+                        deleted = true;
+                    }
+                    documentBuilder.addField(document, fieldName, parser);
+            }
+        }
+
+        batch.decoded++;
+        if (uuid != null) {
+            IndexBatch.write(batch.changes, batch.updates, uuid, deleted ? null : document);
+        } else {
+            batch.documents.add(document);
+        }
+    }
+}
@@ -1,39 +1,519 @@
 package dev.arseny.service;
 
-import dev.arseny.RequestUtils;
+import dev.arseny.EnvUtils;
+import dev.arseny.model.IndexStats;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.SoftDeletesDirectoryReaderWrapper;
 import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
 import org.jboss.logging.Logger;
 
+import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+// Keeps one SearcherManager per index so warm containers can reuse open readers between requests.
+// Searchers handed out by acquire() are reference counted and must be given back with release().
+//
+// Refreshes run on a background thread: queries keep getting the current searcher while the new commit
+// is synced, opened and warmed, and get the new one once it is published. Only a refresh that was asked
+// for with requestRefresh() is waited for.
+//
+// With SEARCHER_LOCAL_REPLICA the latest commit of every index is copied to local storage and searched
+// from there, which turns NFS round trips into page cache hits. Indexes that don't fit are read from EFS.
 @ApplicationScoped
 public class IndexSearcherService {
-    private static final Logger LOG = Logger.getLogger(RequestUtils.class);
+    private static final Logger LOG = Logger.getLogger(IndexSearcherService.class);
 
-    private DirectoryReader directoryReader;
+    protected SearcherRefreshPolicy refreshPolicy =
+            SearcherRefreshPolicy.parse(EnvUtils.getString("SEARCHER_REFRESH_POLICY", "interval"));
+    protected long refreshIntervalMillis = EnvUtils.getLong("SEARCHER_REFRESH_INTERVAL_MS", 1000);
+    protected long maxCacheBytes = EnvUtils.getLong("SEARCHER_CACHE_MAX_BYTES", 512L * 1024 * 1024);
+    protected int warmQueryCount = EnvUtils.getInt("SEARCHER_WARM_QUERIES", 10);
+    protected int warmMaxTerms = EnvUtils.getInt("SEARCHER_WARM_MAX_TERMS", 1000);
+    protected long warmMaxMillis = EnvUtils.getLong("SEARCHER_WARM_MAX_MS", 200);
+    protected boolean localReplica = EnvUtils.getBoolean("SEARCHER_LOCAL_REPLICA", false);
+    protected String replicaDirectory = EnvUtils.getString("SEARCHER_REPLICA_DIRECTORY", "/tmp/lucene-replicas/");
+    // Lambda's ephemeral storage defaults to 512MB, independently of the memory of the function.
+    protected long replicaMaxBytes = EnvUtils.getLong("SEARCHER_REPLICA_MAX_BYTES", 512L * 1024 * 1024);
+    // Larger Lambda memory sizes come with more vCPUs, which the segments of one query are spread over.
+    protected int searchThreads = EnvUtils.getInt("SEARCHER_THREADS", Runtime.getRuntime().availableProcessors());
+    protected boolean virtualThreads = EnvUtils.getBoolean("SEARCHER_VIRTUAL_THREADS", false);
+    protected int sliceMaxDocs = EnvUtils.getInt("SEARCHER_SLICE_MAX_DOCS", 250_000);
+    protected int sliceMaxSegments = EnvUtils.getInt("SEARCHER_SLICE_MAX_SEGMENTS", 5);
 
-    public IndexSearcher getIndexSearcher(String indexName) {
+    @Inject
+    protected QueryResultCache queryResultCache;
+
+    @Inject
+    protected DirectoryFactory directoryFactory;
+
+    @Inject
+    protected HotQueries hotQueries;
+
+    // Access ordered, so iteration starts with the least recently used index.
+    private final LinkedHashMap<String, CachedSearcher> searchers = new LinkedHashMap<>(16, 0.75f, true);
+    // Indexes that are being opened, guarded by the searchers lock.
+    private final Map<String, FutureTask<CachedSearcher>> opening = new HashMap<>();
+
+    // Shared by the searchers of all indexes, created with the first searcher.
+    private ExecutorService executor;
+    private boolean executorCreated;
+    // Runs the refreshes of all indexes, one at a time.
+    private ExecutorService refresher;
+
+    public IndexSearcher acquire(String indexName) {
+        try {
+            while (true) {
+                CachedSearcher cachedSearcher = getCachedSearcher(indexName);
+
+                try {
+                    if (cachedSearcher.refreshRequested) {
+                        awaitRefresh(cachedSearcher);
+                    } else if (cachedSearcher.needsRefresh(refreshPolicy, refreshIntervalMillis, System.currentTimeMillis())) {
+                        scheduleRefresh(cachedSearcher);
+                    }
+                    if (cachedSearcher.replicaOutgrown) {
+                        // Drop the local copy, the searcher is opened again on EFS.
+                        remove(cachedSearcher);
+                        continue;
+                    }
+                    return cachedSearcher.manager.acquire();
+                } catch (AlreadyClosedException e) {
+                    // The entry was evicted while we were using it, open it again.
+                    LOG.debug("Searcher for index " + indexName + " was evicted, reopening");
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Error while trying to create an index searcher for index " + indexName, e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Returns a searcher on the commit with the given generation, so that successive requests read the same
+    // point in time. Older commits are only found while the deletion policy keeps them, that is for
+    // COMMIT_RETENTION_MS or as long as they are snapshotted. Local replicas only hold the latest commit, older
+    // ones are read from EFS.
+    public IndexSearcher acquire(String indexName, long generation) throws IOException {
+        IndexSearcher searcher = acquire(indexName);
+        try {
+            DirectoryReader reader = (DirectoryReader) searcher.getIndexReader();
+            if (reader.getIndexCommit().getGeneration() == generation) {
+                IndexSearcher current = searcher;
+                searcher = null;
+                return current;
+            }
+            for (IndexCommit commit : DirectoryReader.listCommits(reader.directory())) {
+                if (commit.getGeneration() == generation) {
+                    // Segments shared with the current reader are reused, and the soft deletes wrapper is kept.
+                    DirectoryReader commitReader;
+                    try {
+                        commitReader = DirectoryReader.openIfChanged(reader, commit);
+                    } catch (FileNotFoundException | NoSuchFileException e) {
+                        // Deleted since it was listed.
+                        break;
+                    }
+                    if (commitReader != null) {
+                        return new IndexSearcher(commitReader);
+                    }
+                }
+            }
+            if (localReplica) {
+                IndexSearcher commitSearcher = openCommit(indexName, generation);
+                if (commitSearcher != null) {
+                    return commitSearcher;
+                }
+            }
+            throw new IllegalArgumentException("Commit " + generation + " of index " + indexName + " no longer exists");
+        } finally {
+            if (searcher != null) {
+                release(searcher);
+            }
+        }
+    }
+
+    // Opens a commit from the index directory on EFS, or returns null if it no longer exists. The directory is
+    // closed together with the reader when the searcher is released.
+    private IndexSearcher openCommit(String indexName, long generation) throws IOException {
+        Directory directory = directoryFactory.open(indexName);
+        try {
+            for (IndexCommit commit : DirectoryReader.listCommits(directory)) {
+                if (commit.getGeneration() == generation) {
+                    DirectoryReader commitReader = DirectoryReader.open(commit);
+                    Directory commitDirectory = directory;
+                    directory = null;
+                    commitReader.getReaderCacheHelper().addClosedListener(key -> commitDirectory.close());
+                    try {
+                        return new IndexSearcher(new SoftDeletesDirectoryReaderWrapper(commitReader,
+                                IndexConstants.SOFT_DELETES_FIELD));
+                    } catch (IOException | RuntimeException e) {
+                        commitReader.close();
+                        throw e;
+                    }
+                }
+            }
+            return null;
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            // Deleted since it was listed.
+            return null;
+        } finally {
+            if (directory != null) {
+                directory.close();
+            }
+        }
+    }
+
+    public void release(IndexSearcher searcher) {
+        try {
+            searcher.getIndexReader().decRef();
+        } catch (IOException e) {
+            LOG.error("Error while releasing an index searcher", e);
+        }
+    }
+
+    // Adds the block cache counts since the last request that reported them.
+    public void recordBlockCacheCounts(RequestMetrics requestMetrics) {
+        directoryFactory.recordBlockCacheCounts(requestMetrics);
+    }
+
+    // Makes the next acquire() for the index wait for a check for a new commit, whatever the refresh policy is.
+    public void requestRefresh(String indexName) {
+        CachedSearcher cachedSearcher;
+        synchronized (searchers) {
+            cachedSearcher = searchers.get(indexName);
+        }
+        if (cachedSearcher != null) {
+            cachedSearcher.refreshRequested = true;
+        }
+    }
+
+    // Starts a refresh of the index in the background, unless one is running already.
+    private Future<?> scheduleRefresh(CachedSearcher cachedSearcher) {
+        synchronized (cachedSearcher) {
+            if (cachedSearcher.refreshTask == null || cachedSearcher.refreshTask.isDone()) {
+                ExecutorService refresher;
+                synchronized (searchers) {
+                    refresher = refresher();
+                }
+                cachedSearcher.refreshTask = refresher.submit(() -> {
+                    refresh(cachedSearcher);
+                    return null;
+                });
+            }
+            return cachedSearcher.refreshTask;
+        }
+    }
+
+    // A refresh that is already running may have started before the request, it clears the flag when it starts.
+    private void awaitRefresh(CachedSearcher cachedSearcher) throws IOException {
+        while (cachedSearcher.refreshRequested) {
+            try {
+                scheduleRefresh(cachedSearcher).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while refreshing index " + cachedSearcher.indexName);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    // Runs on the refresher thread. A replica that outgrew local storage is dropped by the next acquire().
+    private void refresh(CachedSearcher cachedSearcher) throws IOException {
         try {
-            DirectoryReader newDirectoryReader;
+            if (cachedSearcher.refresh()) {
+                queryResultCache.invalidate(cachedSearcher.indexName);
+                evictIfNeeded(cachedSearcher.indexName);
+            }
+        } catch (AlreadyClosedException e) {
+            LOG.debug("Searcher for index " + cachedSearcher.indexName + " was evicted while refreshing");
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Error while refreshing the searcher for index " + cachedSearcher.indexName, e);
+            throw e;
+        }
+    }
+
+    // Opening an index may copy it to local storage and warm the new searcher, so it runs outside the
+    // searchers lock. Concurrent requests for the same index wait for the first one to open it, requests
+    // for other indexes aren't held up.
+    private CachedSearcher getCachedSearcher(String indexName) throws IOException {
+        FutureTask<CachedSearcher> task;
+        boolean opener = false;
+        synchronized (searchers) {
+            CachedSearcher cachedSearcher = searchers.get(indexName);
+            if (cachedSearcher != null) {
+                return cachedSearcher;
+            }
+            task = opening.get(indexName);
+            if (task == null) {
+                task = new FutureTask<>(() -> openSearcher(indexName));
+                opening.put(indexName, task);
+                opener = true;
+            }
+        }
 
-            if (directoryReader == null) {
-                newDirectoryReader = DirectoryReader.open(FSDirectory.open(Paths.get(IndexConstants.LUCENE_INDEX_ROOT_DIRECTORY + indexName)));
+        if (opener) {
+            task.run();
+            synchronized (searchers) {
+                opening.remove(indexName);
+                try {
+                    searchers.put(indexName, task.get());
+                } catch (ExecutionException | InterruptedException e) {
+                    // The failure is thrown to every caller below.
+                }
+            }
+        }
+
+        CachedSearcher cachedSearcher;
+        try {
+            cachedSearcher = task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while opening index " + indexName);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        if (opener) {
+            evictIfNeeded(indexName);
+        }
+        return cachedSearcher;
+    }
+
+    private CachedSearcher openSearcher(String indexName) throws IOException {
+        Path indexPath = Paths.get(IndexConstants.LUCENE_INDEX_ROOT_DIRECTORY + indexName);
+        LocalReplica replica = localReplica ? openReplica(indexName, indexPath) : null;
+        WarmPackDirectory warmPackDirectory = null;
+        Directory directory;
+        if (replica != null) {
+            directory = replica.localDirectory;
+        } else {
+            directory = directoryFactory.open(indexName);
+            Map<String, ByteBuffer> packedFiles = readWarmPack(indexName, indexPath, directory);
+            if (packedFiles != null) {
+                directory = warmPackDirectory = new WarmPackDirectory(directory, packedFiles);
+            }
+        }
+        ExecutorService executor;
+        synchronized (searchers) {
+            executor = executor();
+        }
+        CachedSearcher cachedSearcher;
+        try {
+            // Soft deleted documents are hidden like deleted ones. Indexes without soft deletes pass through.
+            DirectoryReader reader = new SoftDeletesDirectoryReaderWrapper(DirectoryReader.open(directory),
+                    IndexConstants.SOFT_DELETES_FIELD);
+            cachedSearcher = new CachedSearcher(indexName, directory, replica,
+                    new SearcherManager(reader, new WarmingSearcherFactory(indexName, hotQueries,
+                            warmQueryCount, warmMaxTerms, warmMaxMillis, executor, sliceMaxDocs, sliceMaxSegments)),
+                    warmPackDirectory != null ? warmPackDirectory.packBytes : 0);
+        } catch (IOException | RuntimeException e) {
+            if (replica != null) {
+                replica.close();
             } else {
-                newDirectoryReader = DirectoryReader.openIfChanged(directoryReader);
+                directory.close();
             }
+            throw e;
+        } finally {
+            if (warmPackDirectory != null) {
+                warmPackDirectory.release();
+            }
+        }
+        LOG.info("Opened searcher for index " + indexName + " (" + cachedSearcher.sizeInBytes + " bytes"
+                + (replica != null ? ", local replica" : "") + (warmPackDirectory != null ? ", warm pack" : "") + ")");
+        return cachedSearcher;
+    }
+
+    // Reads the warm pack of the latest commit in one go, or returns null if there is none.
+    private Map<String, ByteBuffer> readWarmPack(String indexName, Path indexPath, Directory directory) {
+        try {
+            long generation = SegmentInfos.getLastCommitGeneration(directory.listAll());
+            return generation > 0 ? WarmPack.read(indexPath, generation) : null;
+        } catch (IOException e) {
+            LOG.warn("Failed to read warm pack of index " + indexName, e);
+            return null;
+        }
+    }
+
+    // Returns null when the index doesn't fit into local storage.
+    private LocalReplica openReplica(String indexName, Path indexPath) throws IOException {
+        LocalReplica replica = new LocalReplica(indexName, indexPath, Paths.get(replicaDirectory, indexName), replicaMaxBytes);
+        try {
+            if (replica.sync()) {
+                return replica;
+            }
+        } catch (IOException e) {
+            replica.close();
+            throw e;
+        }
+        replica.close();
+        return null;
+    }
+
+    private void remove(CachedSearcher cachedSearcher) {
+        synchronized (searchers) {
+            if (searchers.get(cachedSearcher.indexName) == cachedSearcher) {
+                searchers.remove(cachedSearcher.indexName);
+            }
+        }
+        close(cachedSearcher);
+    }
+
+    // Closes the least recently used searchers until the cached indexes fit into maxCacheBytes and their
+    // local replicas into replicaMaxBytes. The index that was just used is never evicted. Closing a
+    // SearcherManager only drops its own reference, so searchers that are still in use stay open until
+    // they are released.
+    private void evictIfNeeded(String currentIndexName) {
+        List<CachedSearcher> evicted = new ArrayList<>();
 
-            if (newDirectoryReader != null) {
-                this.directoryReader = newDirectoryReader;
+        synchronized (searchers) {
+            long totalBytes = 0;
+            long replicaBytes = 0;
+            for (CachedSearcher cachedSearcher : searchers.values()) {
+                totalBytes += cachedSearcher.sizeInBytes;
+                if (cachedSearcher.replica != null) {
+                    replicaBytes += cachedSearcher.sizeInBytes;
+                }
             }
 
-            return new IndexSearcher(this.directoryReader);
+            Iterator<Map.Entry<String, CachedSearcher>> iterator = searchers.entrySet().iterator();
+            while ((totalBytes > maxCacheBytes || replicaBytes > replicaMaxBytes) && iterator.hasNext()) {
+                CachedSearcher cachedSearcher = iterator.next().getValue();
+                if (cachedSearcher.indexName.equals(currentIndexName)
+                        || (totalBytes <= maxCacheBytes && cachedSearcher.replica == null)) {
+                    continue;
+                }
+                iterator.remove();
+                totalBytes -= cachedSearcher.sizeInBytes;
+                if (cachedSearcher.replica != null) {
+                    replicaBytes -= cachedSearcher.sizeInBytes;
+                }
+                evicted.add(cachedSearcher);
+            }
+        }
+
+        for (CachedSearcher cachedSearcher : evicted) {
+            close(cachedSearcher);
+            LOG.info("Evicted searcher for index " + cachedSearcher.indexName);
+        }
+    }
+
+    private void close(CachedSearcher cachedSearcher) {
+        queryResultCache.invalidate(cachedSearcher.indexName);
+        try {
+            cachedSearcher.manager.close();
+            if (cachedSearcher.replica != null) {
+                cachedSearcher.replica.close();
+            } else {
+                cachedSearcher.directory.close();
+            }
         } catch (IOException e) {
-            LOG.error("Error while trying to create an index searcher for index " + indexName, e);
-            throw new RuntimeException(e);
+            LOG.error("Error while closing searcher for index " + cachedSearcher.indexName, e);
+        }
+    }
+
+    // Returns the document and segment counts of the latest commit of an index.
+    public IndexStats stats(String indexName) throws IOException {
+        requestRefresh(indexName);
+        IndexSearcher searcher = acquire(indexName);
+        try {
+            IndexReader reader = searcher.getIndexReader();
+            IndexStats stats = new IndexStats();
+            stats.setIndexName(indexName);
+            stats.setNumDocs(reader.numDocs());
+            stats.setMaxDoc(reader.maxDoc());
+            stats.setDeletedDocs(reader.numDeletedDocs());
+            stats.setDeletedRatio(reader.maxDoc() == 0 ? 0 : (double) reader.numDeletedDocs() / reader.maxDoc());
+            stats.setSegments(reader.leaves().size());
+            stats.setSizeInBytes(Segments.sizeInBytes(reader));
+            stats.setVersion(((DirectoryReader) reader).getVersion());
+            return stats;
+        } finally {
+            release(searcher);
+        }
+    }
+
+    @PreDestroy
+    public void closeAll() {
+        List<CachedSearcher> all;
+        synchronized (searchers) {
+            all = new ArrayList<>(searchers.values());
+            searchers.clear();
+        }
+        for (CachedSearcher cachedSearcher : all) {
+            close(cachedSearcher);
+        }
+        synchronized (searchers) {
+            if (executor != null) {
+                executor.shutdown();
+            }
+            executor = null;
+            executorCreated = false;
+            if (refresher != null) {
+                refresher.shutdown();
+            }
+            refresher = null;
+        }
+    }
+
+    // Called with the searchers lock held.
+    private ExecutorService executor() {
+        if (!executorCreated) {
+            executor = SearchExecutors.create(searchThreads, virtualThreads);
+            executorCreated = true;
+        }
+        return executor;
+    }
+
+    // Called with the searchers lock held.
+    private ExecutorService refresher() {
+        if (refresher == null) {
+            ThreadPoolExecutor threadPool = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "searcher-refresh");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            // Idle Lambda containers shouldn't keep threads around.
+            threadPool.allowCoreThreadTimeOut(true);
+            refresher = threadPool;
         }
+        return refresher;
     }
 }
@@ -1,26 +1,366 @@
 package dev.arseny.service;
 
-import dev.arseny.RequestUtils;
+import dev.arseny.EnvUtils;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.FieldInfos;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
 import org.apache.lucene.index.IndexWriterConfig;
-import org.apache.lucene.index.NoDeletionPolicy;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.SoftDeletesRetentionMergePolicy;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.LockObtainFailedException;
 import org.jboss.logging.Logger;
 
+import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
-
+// Keeps IndexWriters open across invocations of a warm container. A pooled writer is committed at the
+// end of every SQS batch, before its messages are acknowledged, so a frozen container never holds
+// uncommitted changes. Commits are grouped by the size and batching window of the SQS event source.
 @ApplicationScoped
 public class IndexWriterService {
-    private static final Logger LOG = Logger.getLogger(RequestUtils.class);
+    private static final Logger LOG = Logger.getLogger(IndexWriterService.class);
+
+    // Lock files older than this are considered abandoned by a crashed or frozen writer.
+    private static final long STALE_LOCK_MILLIS = 5 * 60 * 1000;
+
+    protected long writerIdleTimeoutMillis = EnvUtils.getLong("WRITER_IDLE_TIMEOUT_MS", 4 * 60 * 1000);
+    protected int commitRetentionCount = EnvUtils.getInt("COMMIT_RETENTION_COUNT", 2);
+    protected long commitRetentionMillis = EnvUtils.getLong("COMMIT_RETENTION_MS", 10 * 60 * 1000);
+    protected double mergeMaxSegmentMB = EnvUtils.getDouble("MERGE_MAX_SEGMENT_MB", 5 * 1024);
+    protected double mergeSegmentsPerTier = EnvUtils.getDouble("MERGE_SEGMENTS_PER_TIER", 10);
+    protected double mergeDeletesPctAllowed = EnvUtils.getDouble("MERGE_DELETES_PCT_ALLOWED", 20);
+    protected int mergeMaxThreads = EnvUtils.getInt("MERGE_MAX_THREADS", ConcurrentMergeScheduler.AUTO_DETECT_MERGES_AND_THREADS);
+    // Soft deletes mark replaced and deleted documents with a doc values update instead of a hard delete,
+    // and can keep them around for a while before merges drop them.
+    protected boolean softDeletes = EnvUtils.getBoolean("SOFT_DELETES_ENABLED", false);
+    protected long softDeletesRetentionMillis = EnvUtils.getLong("SOFT_DELETES_RETENTION_MS", 0);
+
+    protected boolean warmPackEnabled = EnvUtils.getBoolean("WARM_PACK_ENABLED", false);
+    protected long warmPackMaxBytes = EnvUtils.getLong("WARM_PACK_MAX_BYTES", 16L * 1024 * 1024);
+    protected long warmPackMaxFileBytes = EnvUtils.getLong("WARM_PACK_MAX_FILE_BYTES", 256L * 1024);
+
+    @Inject
+    protected DirectoryFactory directoryFactory;
+
+    private final Map<String, PooledIndexWriter> writers = new HashMap<>();
+
+    public boolean isSoftDeletes() {
+        return softDeletes;
+    }
 
+    // The field that soft deletes a document, holding the time of the delete for the retention window.
+    public static Field softDeleteField() {
+        return new NumericDocValuesField(IndexConstants.SOFT_DELETES_FIELD, System.currentTimeMillis());
+    }
+
+    // Returns the pooled writer for the index, opening it if needed. The writer must not be closed by the caller.
     public IndexWriter getIndexWriter(String indexName) {
+        synchronized (writers) {
+            PooledIndexWriter pooledWriter = writers.get(indexName);
+            if (pooledWriter != null && !pooledWriter.writer.isOpen()) {
+                LOG.warn("Pooled writer for index " + indexName + " was closed, reopening",
+                        pooledWriter.writer.getTragicException());
+                writers.remove(indexName);
+                pooledWriter = null;
+            }
+            if (pooledWriter != null && !holdsLock(pooledWriter)) {
+                writers.remove(indexName);
+                discard(pooledWriter);
+                pooledWriter = null;
+            }
+            if (pooledWriter == null) {
+                IndexWriter writer = openIndexWriter(indexName);
+                pooledWriter = new PooledIndexWriter(indexName, writer, lockFileKey(indexName));
+                writers.put(indexName, pooledWriter);
+            }
+
+            pooledWriter.lastUsedMillis = System.currentTimeMillis();
+            return pooledWriter.writer;
+        }
+    }
+
+    // Records documents written to the index since the last commit.
+    public void recordChanges(String indexName, long docs) {
+        PooledIndexWriter pooledWriter = getPooledWriter(indexName);
+        if (pooledWriter != null) {
+            pooledWriter.pendingDocs.addAndGet(docs);
+        }
+    }
+
+    // Commits the index if it has uncommitted changes. Called once a batch is written, before its messages
+    // are acknowledged.
+    public void maybeCommit(String indexName) {
+        PooledIndexWriter pooledWriter = getPooledWriter(indexName);
+        if (pooledWriter != null && pooledWriter.hasPendingChanges()) {
+            commit(pooledWriter);
+        }
+    }
+
+    // Commits the index right away.
+    public void commit(String indexName) {
+        PooledIndexWriter pooledWriter = getPooledWriter(indexName);
+        if (pooledWriter != null) {
+            commit(pooledWriter);
+        }
+    }
+
+    // Starts merging the index down to at most maxSegments segments. Merges run in the background and are
+    // committed with the next commit, or when the writer is closed.
+    public void forceMerge(String indexName, int maxSegments) {
+        IndexWriter writer = getIndexWriter(indexName);
+        try {
+            writer.forceMerge(maxSegments, false);
+            LOG.info("Started merging index " + indexName + " down to " + maxSegments + " segments");
+        } catch (IOException e) {
+            LOG.error("Error while merging index " + indexName, e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Deletes all documents of the index and commits right away.
+    public void deleteAll(String indexName) {
+        IndexWriter writer = getIndexWriter(indexName);
+        try {
+            writer.deleteAll();
+            LOG.info("Deleted all documents of index " + indexName);
+        } catch (IOException e) {
+            LOG.error("Error while deleting all documents of index " + indexName, e);
+            throw new RuntimeException(e);
+        }
+        commit(indexName);
+    }
+
+    // Commits pending changes and pins the resulting commit under the given name.
+    public long snapshot(String indexName, String snapshotName) {
+        IndexWriter writer = getIndexWriter(indexName);
+        commit(indexName);
+        try {
+            long generation = deletionPolicy(writer).snapshot(snapshotName);
+            LOG.info("Created snapshot " + snapshotName + " of index " + indexName + " at generation " + generation);
+            return generation;
+        } catch (IOException e) {
+            LOG.error("Error while creating snapshot " + snapshotName + " of index " + indexName, e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void releaseSnapshot(String indexName, String snapshotName) {
+        IndexWriter writer = getIndexWriter(indexName);
+        try {
+            if (deletionPolicy(writer).release(snapshotName)) {
+                LOG.info("Released snapshot " + snapshotName + " of index " + indexName);
+            } else {
+                LOG.warn("Unknown snapshot " + snapshotName + " of index " + indexName);
+            }
+        } catch (IOException e) {
+            LOG.error("Error while releasing snapshot " + snapshotName + " of index " + indexName, e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static RetentionDeletionPolicy deletionPolicy(IndexWriter writer) {
+        return (RetentionDeletionPolicy) writer.getConfig().getIndexDeletionPolicy();
+    }
+
+    // Commits and closes the writer, releasing the index lock for other functions.
+    public void close(String indexName) {
+        PooledIndexWriter pooledWriter;
+        synchronized (writers) {
+            pooledWriter = writers.remove(indexName);
+        }
+        if (pooledWriter != null) {
+            close(pooledWriter);
+        }
+    }
+
+    // Discards the changes made to the index since its last commit and closes the writer, the next batch
+    // opens a new one on the last commit.
+    public void rollback(String indexName) {
+        PooledIndexWriter pooledWriter;
+        synchronized (writers) {
+            pooledWriter = writers.remove(indexName);
+        }
+        if (pooledWriter == null) {
+            return;
+        }
+        synchronized (pooledWriter) {
+            try {
+                pooledWriter.writer.rollback();
+                LOG.info("Rolled back " + pooledWriter.pendingDocs.get() + " changes to index " + indexName);
+            } catch (IOException | RuntimeException e) {
+                LOG.error("Error rolling back IndexWriter for index " + indexName, e);
+            }
+            try {
+                pooledWriter.writer.getDirectory().close();
+            } catch (IOException e) {
+                LOG.error("Error closing directory for index " + indexName, e);
+            }
+        }
+    }
+
+    // Closes writers that were not used for WRITER_IDLE_TIMEOUT_MS, before other containers may consider their locks stale.
+    public void closeIdleWriters() {
+        List<PooledIndexWriter> idle = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        synchronized (writers) {
+            for (PooledIndexWriter pooledWriter : writers.values()) {
+                if (now - pooledWriter.lastUsedMillis > writerIdleTimeoutMillis) {
+                    idle.add(pooledWriter);
+                }
+            }
+            for (PooledIndexWriter pooledWriter : idle) {
+                writers.remove(pooledWriter.indexName);
+            }
+        }
+        for (PooledIndexWriter pooledWriter : idle) {
+            if (holdsLock(pooledWriter)) {
+                LOG.info("Closing idle writer for index " + pooledWriter.indexName);
+                close(pooledWriter);
+            } else {
+                discard(pooledWriter);
+            }
+        }
+    }
+
+    // Batches are committed before they are acknowledged, so closing the writers on shutdown only
+    // releases their locks sooner. Lambda doesn't always call it.
+    @PreDestroy
+    public void closeAll() {
+        List<PooledIndexWriter> all;
+        synchronized (writers) {
+            all = new ArrayList<>(writers.values());
+            writers.clear();
+        }
+        for (PooledIndexWriter pooledWriter : all) {
+            close(pooledWriter);
+        }
+    }
+
+    private PooledIndexWriter getPooledWriter(String indexName) {
+        synchronized (writers) {
+            return writers.get(indexName);
+        }
+    }
+
+    private void commit(PooledIndexWriter pooledWriter) {
+        synchronized (pooledWriter) {
+            try {
+                long docs = pooledWriter.pendingDocs.get();
+                setCommitTimestamp(pooledWriter.writer);
+                pooledWriter.writer.commit();
+                pooledWriter.committed(docs);
+                LOG.info("Committed " + docs + " changes to index " + pooledWriter.indexName);
+                writeWarmPack(pooledWriter);
+            } catch (IOException e) {
+                LOG.error("Error committing IndexWriter for index " + pooledWriter.indexName, e);
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private void close(PooledIndexWriter pooledWriter) {
+        synchronized (pooledWriter) {
+            try {
+                setCommitTimestamp(pooledWriter.writer);
+                pooledWriter.writer.close();
+            } catch (IOException | RuntimeException e) {
+                LOG.error("Error closing IndexWriter for index " + pooledWriter.indexName, e);
+                try {
+                    pooledWriter.writer.rollback();
+                } catch (IOException | RuntimeException rollbackException) {
+                    LOG.error("Error rolling back IndexWriter for index " + pooledWriter.indexName, rollbackException);
+                }
+            }
+            // Closing may have committed finished merges.
+            writeWarmPack(pooledWriter);
+            try {
+                pooledWriter.writer.getDirectory().close();
+            } catch (IOException e) {
+                LOG.error("Error closing directory for index " + pooledWriter.indexName, e);
+            }
+        }
+    }
+
+    // A failed pack only slows down the next cold start, so it doesn't fail the commit.
+    private void writeWarmPack(PooledIndexWriter pooledWriter) {
+        if (!warmPackEnabled) {
+            return;
+        }
+        try {
+            WarmPack.write(pooledWriter.writer.getDirectory(), Paths.get(IndexConstants.LUCENE_INDEX_ROOT_DIRECTORY + pooledWriter.indexName),
+                    warmPackMaxBytes, warmPackMaxFileBytes);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Failed to write warm pack for index " + pooledWriter.indexName, e);
+        }
+    }
+
+    // Records when the commit was made, for the retention policy. Setting it alone doesn't count as a change.
+    private static void setCommitTimestamp(IndexWriter writer) {
+        writer.setLiveCommitData(Collections.singletonMap(RetentionDeletionPolicy.COMMIT_TIMESTAMP_KEY,
+                String.valueOf(System.currentTimeMillis())).entrySet(), false);
+    }
+
+    // Another container deletes a lock older than STALE_LOCK_MILLIS while its writer is frozen, and creates
+    // its own lock file, which is a different file.
+    private static boolean holdsLock(PooledIndexWriter pooledWriter) {
+        return pooledWriter.lockFileKey.equals(lockFileKey(pooledWriter.indexName));
+    }
+
+    // Identifies the lock file of the index by its file key, e.g. the inode, and its modification time,
+    // since a new file may reuse the inode. Lucene never modifies the lock file once it's created.
+    private static List<Object> lockFileKey(String indexName) {
+        Path lockFile = Paths.get(IndexConstants.LUCENE_INDEX_ROOT_DIRECTORY + indexName, IndexWriter.WRITE_LOCK_NAME);
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(lockFile, BasicFileAttributes.class);
+            return Arrays.asList(attributes.fileKey(), attributes.lastModifiedTime());
+        } catch (IOException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    // Drops a writer whose lock was taken over without touching the index files the new writer owns. Its
+    // directory is closed first, which stops its merges and makes the rollback fail before it writes or
+    // deletes anything, but the rollback still releases the lock this process holds. Batches are committed
+    // before they are acknowledged, so no acknowledged changes are lost.
+    private void discard(PooledIndexWriter pooledWriter) {
+        LOG.warn("Lock of index " + pooledWriter.indexName + " was taken over by another writer, discarding the pooled writer");
+        synchronized (pooledWriter) {
+            try {
+                pooledWriter.writer.getDirectory().close();
+            } catch (IOException e) {
+                LOG.error("Error closing directory for index " + pooledWriter.indexName, e);
+            }
+            try {
+                pooledWriter.writer.rollback();
+            } catch (IOException | RuntimeException e) {
+                LOG.debug("Rollback of discarded writer for index " + pooledWriter.indexName + " failed", e);
+            }
+        }
+    }
+
+    private IndexWriter openIndexWriter(String indexName) {
         int retryCount = 0;
         int maxRetries = 5;
         long retryDelay = 1000; // 1 second
@@ -29,11 +369,11 @@ public class IndexWriterService {
             try {
 
                 // Delete stale lock files.
-                Path lockFile = Paths.get(IndexConstants.LUCENE_INDEX_ROOT_DIRECTORY + indexName, "write.lock");
+                Path lockFile = Paths.get(IndexConstants.LUCENE_INDEX_ROOT_DIRECTORY + indexName, IndexWriter.WRITE_LOCK_NAME);
                 if (Files.exists(lockFile)) {
                     // Check if the lock is stale (e.g., older than 5 minutes)
                     long lockAge = Files.getLastModifiedTime(lockFile).toMillis();
-                    if (System.currentTimeMillis() - lockAge > 5 * 60 * 1000) {
+                    if (System.currentTimeMillis() - lockAge > STALE_LOCK_MILLIS) {
                         try {
                             Files.delete(lockFile);
                             LOG.info("Deleted stale lock file: " + lockFile.toString());
@@ -43,12 +383,49 @@ public class IndexWriterService {
                     }
                 }
 
+                Path indexPath = Paths.get(IndexConstants.LUCENE_INDEX_ROOT_DIRECTORY + indexName);
+                Files.createDirectories(indexPath);
+
+                // TieredMergePolicy favours merging segments with many deletes, so they are reclaimed first.
+                MergePolicy mergePolicy = new TieredMergePolicy()
+                        .setMaxMergedSegmentMB(mergeMaxSegmentMB)
+                        .setSegmentsPerTier(mergeSegmentsPerTier)
+                        .setDeletesPctAllowed(mergeDeletesPctAllowed);
+                Directory directory = directoryFactory.open(indexName);
+                IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+                if (softDeletes) {
+                    // Soft deleted documents within the retention window survive merges, older ones are dropped.
+                    long retentionMillis = softDeletesRetentionMillis;
+                    mergePolicy = new SoftDeletesRetentionMergePolicy(IndexConstants.SOFT_DELETES_FIELD,
+                            () -> retentionMillis > 0
+                                    ? NumericDocValuesField.newSlowRangeQuery(IndexConstants.SOFT_DELETES_FIELD,
+                                            System.currentTimeMillis() - retentionMillis, Long.MAX_VALUE)
+                                    : new MatchNoDocsQuery(),
+                            mergePolicy);
+                    config.setSoftDeletesField(IndexConstants.SOFT_DELETES_FIELD);
+                } else {
+                    // Lucene refuses to open an index that has a soft deletes field without it. Such indexes
+                    // keep the field, so their soft deleted documents stay hidden, but are hard deleted from now on.
+                    String softDeletesField = softDeletesField(directory);
+                    if (softDeletesField != null) {
+                        LOG.info("Index " + indexName + " was written with soft deletes, keeping field " + softDeletesField);
+                        config.setSoftDeletesField(softDeletesField);
+                    }
+                }
+                ConcurrentMergeScheduler mergeScheduler = new ConcurrentMergeScheduler();
+                if (mergeMaxThreads != ConcurrentMergeScheduler.AUTO_DETECT_MERGES_AND_THREADS) {
+                    mergeScheduler.setMaxMergesAndThreads(mergeMaxThreads + 5, mergeMaxThreads);
+                }
+
                 IndexWriter indexWriter = new IndexWriter(
-                        FSDirectory.open(Paths.get(IndexConstants.LUCENE_INDEX_ROOT_DIRECTORY + indexName)),
-                        new IndexWriterConfig(new StandardAnalyzer())
-                                .setIndexDeletionPolicy(NoDeletionPolicy.INSTANCE)
+                        directory,
+                        config
+                                .setIndexDeletionPolicy(new RetentionDeletionPolicy(indexPath, commitRetentionCount, commitRetentionMillis))
+                                .setMergePolicy(mergePolicy)
+                                .setMergeScheduler(mergeScheduler)
                 );
 
+                LOG.info("Opened writer for index " + indexName);
                 return indexWriter;
             } catch (LockObtainFailedException e) {
                 retryCount++;
@@ -71,4 +448,34 @@ public class IndexWriterService {
 
         throw new RuntimeException("Failed to obtain lock for index " + indexName + " after " + maxRetries + " attempts.");
     }
+
+    // Returns the soft deletes field of the latest commit of an index, or null. Only the field infos of the
+    // segments are read, which is what IndexWriter checks the configured field against.
+    static String softDeletesField(Directory directory) throws IOException {
+        if (SegmentInfos.getLastCommitGeneration(directory) < 0) {
+            return null;
+        }
+        for (SegmentCommitInfo info : SegmentInfos.readLatestCommit(directory)) {
+            String softDeletesField = readFieldInfos(info).getSoftDeletesField();
+            if (softDeletesField != null) {
+                return softDeletesField;
+            }
+        }
+        return null;
+    }
+
+    private static FieldInfos readFieldInfos(SegmentCommitInfo info) throws IOException {
+        Codec codec = info.info.getCodec();
+        if (info.hasFieldUpdates()) {
+            // Doc values updates write the field infos of the segment again, outside of its compound file.
+            String suffix = Long.toString(info.getFieldInfosGen(), Character.MAX_RADIX);
+            return codec.fieldInfosFormat().read(info.info.dir, info.info, suffix, IOContext.READONCE);
+        }
+        if (info.info.getUseCompoundFile()) {
+            try (Directory compound = codec.compoundFormat().getCompoundReader(info.info.dir, info.info, IOContext.READONCE)) {
+                return codec.fieldInfosFormat().read(compound, info.info, "", IOContext.READONCE);
+            }
+        }
+        return codec.fieldInfosFormat().read(info.info.dir, info.info, "", IOContext.READONCE);
+    }
 }
@@ -0,0 +1,333 @@
+package dev.arseny.service;
+
+import dev.arseny.EnvUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.jboss.logging.Logger;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+
+// Indexes an SQS batch in stages: the messages are decoded into Lucene documents in parallel,
+// and then every index is written by its own task. Within an index, the writes of all messages are
+// collapsed to the last write per uuid, so only the final version of a document reaches IndexWriter,
+// and are split into chunks that are handed to IndexWriter from several threads.
+@ApplicationScoped
+public class IndexingPipeline {
+    private static final Logger LOG = Logger.getLogger(IndexingPipeline.class);
+
+    @Inject
+    protected IndexWriterService indexWriterService;
+
+    @Inject
+    protected MappingService mappingService;
+
+    protected IndexPayloadDecoder decoder =
+            new IndexPayloadDecoder(indexName -> new DocumentBuilder(mappingService.getCurrentMapping(indexName)));
+
+    protected int minChunkSize = EnvUtils.getInt("INDEXING_MIN_CHUNK_SIZE", 100);
+
+    // A ForkJoinPool lets index tasks wait for their chunks without tying up a worker thread.
+    protected ForkJoinPool pool = new ForkJoinPool(
+            EnvUtils.getInt("INDEXING_THREADS", Runtime.getRuntime().availableProcessors()));
+
+    // Stage timings are added to the request metrics. Decoding builds the documents as it parses them, so
+    // the decode stage covers both.
+    //
+    // Returns the positions of the payloads that weren't indexed, so only they are retried: payloads that
+    // can't be decoded, and the payloads with requests for an index that failed to be written or committed.
+    // The uncommitted changes of a failed index are rolled back, so its retried requests aren't applied twice.
+    // Their requests for other indexes are written again, which only replaces documents that have a uuid.
+    public Set<Integer> index(List<String> payloads, RequestMetrics requestMetrics) {
+        Set<Integer> failed = new ConcurrentSkipListSet<>();
+        Map<String, List<IndexBatch>> batchesByIndex = new LinkedHashMap<>();
+        List<List<IndexBatch>> decoded = invokeAll(decodeTasks(payloads, failed));
+        requestMetrics.stage("decode");
+        for (int message = 0; message < decoded.size(); message++) {
+            for (IndexBatch batch : decoded.get(message)) {
+                batch.message = message;
+                requestMetrics.count("documents", batch.size());
+                requestMetrics.count("payloadBytes", batch.payloadBytes);
+                List<IndexBatch> indexBatches = batchesByIndex.get(batch.indexName);
+                if (indexBatches == null) {
+                    indexBatches = new ArrayList<>();
+                    batchesByIndex.put(batch.indexName, indexBatches);
+                }
+                indexBatches.add(batch);
+            }
+        }
+
+        List<Callable<Integer>> writeTasks = new ArrayList<>();
+        for (Map.Entry<String, List<IndexBatch>> entry : batchesByIndex.entrySet()) {
+            writeTasks.add(() -> writeIndex(entry.getKey(), entry.getValue(), failed, requestMetrics));
+        }
+        List<Integer> committed = invokeAll(writeTasks);
+        requestMetrics.stage("write");
+
+        int position = 0;
+        for (Map.Entry<String, List<IndexBatch>> entry : batchesByIndex.entrySet()) {
+            int committedBatches = committed.get(position++);
+            if (committedBatches < 0) {
+                continue;
+            }
+            try {
+                indexWriterService.maybeCommit(entry.getKey());
+            } catch (RuntimeException e) {
+                List<IndexBatch> batches = entry.getValue();
+                fail(entry.getKey(), batches.subList(committedBatches, batches.size()), failed, e);
+            }
+        }
+        requestMetrics.stage("commit");
+        requestMetrics.count("failedMessages", failed.size());
+        return failed;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    // A payload that can't be decoded fails on its own, without holding back the rest of the batch.
+    private List<Callable<List<IndexBatch>>> decodeTasks(List<String> payloads, Set<Integer> failed) {
+        List<Callable<List<IndexBatch>>> tasks = new ArrayList<>();
+        for (int i = 0; i < payloads.size(); i++) {
+            int message = i;
+            String payload = payloads.get(i);
+            tasks.add(() -> {
+                try {
+                    return decoder.decode(payload);
+                } catch (RuntimeException e) {
+                    LOG.error("Error decoding message " + message + " of the batch", e);
+                    failed.add(message);
+                    return Collections.<IndexBatch>emptyList();
+                }
+            });
+        }
+        return tasks;
+    }
+
+    // Applies the batches of one index in order. Consecutive batches are collapsed to the last write per
+    // uuid and written concurrently, until a batch with commands is reached, which must see everything
+    // before it. Commands are committed right away, so they aren't run again when a later batch fails.
+    // Indexes are written concurrently, so the delete, add and update times of all indexes are added up.
+    //
+    // Returns the number of leading batches that are committed, or -1 if the index failed and its
+    // uncommitted batches were reported.
+    private int writeIndex(String indexName, List<IndexBatch> batches, Set<Integer> failed,
+                           RequestMetrics requestMetrics) {
+        PendingWrites pending = new PendingWrites();
+        int committed = 0;
+
+        try {
+            IndexWriter writer = indexWriterService.getIndexWriter(indexName);
+            for (int i = 0; i < batches.size(); i++) {
+                IndexBatch batch = batches.get(i);
+                pending.add(batch);
+                if (batch.hasCommands()) {
+                    writePending(indexName, writer, pending, requestMetrics);
+                    runCommands(batch);
+                    indexWriterService.commit(indexName);
+                    committed = i + 1;
+                }
+            }
+            writePending(indexName, writer, pending, requestMetrics);
+
+            LOG.info("Index successfully updated for " + indexName);
+            return committed;
+        } catch (IOException | RuntimeException e) {
+            fail(indexName, batches.subList(committed, batches.size()), failed, e);
+            return -1;
+        }
+    }
+
+    // Rolls the index back to its last commit and reports the messages of the batches that were lost.
+    private void fail(String indexName, List<IndexBatch> batches, Set<Integer> failed, Exception e) {
+        LOG.error("Error updating index for " + indexName + ", rolling back " + batches.size() + " requests", e);
+        indexWriterService.rollback(indexName);
+        for (IndexBatch batch : batches) {
+            failed.add(batch.message);
+        }
+    }
+
+    // The writes of consecutive batches of an index, with a later write to a uuid replacing earlier ones.
+    private static class PendingWrites {
+        final List<Document> documents = new ArrayList<>();
+        final Map<String, Document> changes = new HashMap<>();
+        final Map<String, Map<String, Field>> updates = new HashMap<>();
+        long decoded;
+
+        // The writes of a batch come before its updates, which never share a uuid with them.
+        void add(IndexBatch batch) {
+            documents.addAll(batch.documents);
+            for (Map.Entry<String, Document> change : batch.changes.entrySet()) {
+                IndexBatch.write(changes, updates, change.getKey(), change.getValue());
+            }
+            for (Map.Entry<String, Map<String, Field>> update : batch.updates.entrySet()) {
+                IndexBatch.update(changes, updates, update.getKey(), update.getValue());
+            }
+            decoded += batch.size();
+        }
+
+        void clear() {
+            documents.clear();
+            changes.clear();
+            updates.clear();
+            decoded = 0;
+        }
+    }
+
+    // Every uuid is written once, so deletes, document updates and doc values updates of different uuids
+    // can't interfere and are applied in any order.
+    private void writePending(String indexName, IndexWriter writer, PendingWrites pending, RequestMetrics requestMetrics)
+            throws IOException {
+        List<Term> deleteTerms = new ArrayList<>();
+        List<Term> updateTerms = new ArrayList<>();
+        List<Document> documents = new ArrayList<>();
+        for (Map.Entry<String, Document> change : pending.changes.entrySet()) {
+            Term term = new Term(DocumentBuilder.UUID_FIELD, change.getKey());
+            if (change.getValue() == null) {
+                deleteTerms.add(term);
+            } else {
+                updateTerms.add(term);
+                documents.add(change.getValue());
+            }
+        }
+        for (Document document : pending.documents) {
+            updateTerms.add(null);
+            documents.add(document);
+        }
+        requestMetrics.count("collapsed", pending.decoded - deleteTerms.size() - documents.size() - pending.updates.size());
+
+        if (!deleteTerms.isEmpty()) {
+            long deleteStart = System.nanoTime();
+            if (indexWriterService.isSoftDeletes()) {
+                // Marks the documents as deleted, merges drop them once the retention window has passed.
+                Field softDelete = IndexWriterService.softDeleteField();
+                for (Term term : deleteTerms) {
+                    writer.updateDocValues(term, softDelete);
+                }
+            } else {
+                writer.deleteDocuments(deleteTerms.toArray(new Term[0]));
+            }
+            requestMetrics.addStage("delete", System.nanoTime() - deleteStart);
+            LOG.debugf("Deleted documents matching terms: %s", deleteTerms);
+        }
+
+        long addStart = System.nanoTime();
+        writeDocuments(writer, updateTerms, documents);
+        long updateStart = System.nanoTime();
+        requestMetrics.addStage("add", updateStart - addStart);
+
+        // Doc values updates only rewrite the doc values of the changed fields when the segment is flushed.
+        for (Map.Entry<String, Map<String, Field>> update : pending.updates.entrySet()) {
+            writer.updateDocValues(new Term(DocumentBuilder.UUID_FIELD, update.getKey()),
+                    update.getValue().values().toArray(new Field[0]));
+        }
+        requestMetrics.addStage("update", System.nanoTime() - updateStart);
+        requestMetrics.count("updates", pending.updates.size());
+        indexWriterService.recordChanges(indexName, pending.decoded);
+        pending.clear();
+    }
+
+    private void runCommands(IndexBatch batch) {
+        if (batch.deleteAll) {
+            indexWriterService.deleteAll(batch.indexName);
+        }
+        if (batch.forceMergeMaxSegments != null) {
+            indexWriterService.forceMerge(batch.indexName, batch.forceMergeMaxSegments);
+        }
+        if (batch.snapshot != null) {
+            indexWriterService.snapshot(batch.indexName, batch.snapshot);
+        }
+        if (batch.releaseSnapshot != null) {
+            indexWriterService.releaseSnapshot(batch.indexName, batch.releaseSnapshot);
+        }
+    }
+
+    // Documents with an update term replace the documents matching it, the others are added.
+    private void writeDocuments(IndexWriter writer, List<Term> updateTerms, List<Document> documents) throws IOException {
+        if (documents.isEmpty()) {
+            return;
+        }
+
+        int chunkCount = Math.max(1, Math.min(pool.getParallelism(), documents.size() / Math.max(1, minChunkSize)));
+        if (chunkCount == 1) {
+            writeChunk(writer, updateTerms, documents);
+            return;
+        }
+
+        int chunkSize = (documents.size() + chunkCount - 1) / chunkCount;
+        List<ForkJoinTask<Long>> chunks = new ArrayList<>();
+        for (int start = 0; start < documents.size(); start += chunkSize) {
+            int end = Math.min(documents.size(), start + chunkSize);
+            List<Term> chunkTerms = updateTerms.subList(start, end);
+            List<Document> chunk = documents.subList(start, end);
+            chunks.add(ForkJoinTask.adapt(() -> writeChunk(writer, chunkTerms, chunk)));
+        }
+        try {
+            ForkJoinTask.invokeAll(chunks);
+        } catch (RuntimeException e) {
+            // Checked exceptions thrown by a chunk come back wrapped.
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+            }
+            throw e;
+        }
+    }
+
+    private long writeChunk(IndexWriter writer, List<Term> updateTerms, List<Document> documents) throws IOException {
+        long seqNo = 0;
+        List<Document> additions = new ArrayList<>();
+        Field softDelete = indexWriterService.isSoftDeletes() ? IndexWriterService.softDeleteField() : null;
+        for (int i = 0; i < documents.size(); i++) {
+            if (updateTerms.get(i) == null) {
+                additions.add(documents.get(i));
+            } else if (softDelete != null) {
+                seqNo = writer.softUpdateDocument(updateTerms.get(i), documents.get(i), softDelete);
+            } else {
+                seqNo = writer.updateDocument(updateTerms.get(i), documents.get(i));
+            }
+        }
+        if (!additions.isEmpty()) {
+            seqNo = writer.addDocuments(additions);
+        }
+        return seqNo;
+    }
+
+    private <T> List<T> invokeAll(List<? extends Callable<T>> tasks) {
+        List<T> results = new ArrayList<>();
+        try {
+            for (Future<T> future : pool.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        return results;
+    }
+}
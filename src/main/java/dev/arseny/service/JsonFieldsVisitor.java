@@ -0,0 +1,74 @@
+package dev.arseny.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.index.StoredFields;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Writes the stored fields of documents straight into a JSON generator as objects of strings, without
+// building a map per document first. With a list of fields only those are decoded, and reading stops as
+// soon as all of them were written. Multi-valued fields write their first value.
+public class JsonFieldsVisitor extends StoredFieldVisitor {
+    private final JsonGenerator generator;
+    private final Set<String> fields;
+    private final Set<String> written = new HashSet<>();
+
+    // Null fields write every stored field.
+    public JsonFieldsVisitor(JsonGenerator generator, List<String> fields) {
+        this.generator = generator;
+        this.fields = fields == null ? null : new HashSet<>(fields);
+    }
+
+    public void writeDocument(StoredFields storedFields, int doc) throws IOException {
+        written.clear();
+        generator.writeStartObject();
+        storedFields.document(doc, this);
+        generator.writeEndObject();
+    }
+
+    @Override
+    public Status needsField(FieldInfo fieldInfo) {
+        if (fields != null && written.size() == fields.size()) {
+            return Status.STOP;
+        }
+        if (written.contains(fieldInfo.name)) {
+            return Status.NO;
+        }
+        return fields == null || fields.contains(fieldInfo.name) ? Status.YES : Status.NO;
+    }
+
+    @Override
+    public void stringField(FieldInfo fieldInfo, String value) throws IOException {
+        write(fieldInfo.name, value);
+    }
+
+    @Override
+    public void intField(FieldInfo fieldInfo, int value) throws IOException {
+        write(fieldInfo.name, String.valueOf(value));
+    }
+
+    @Override
+    public void longField(FieldInfo fieldInfo, long value) throws IOException {
+        write(fieldInfo.name, String.valueOf(value));
+    }
+
+    @Override
+    public void floatField(FieldInfo fieldInfo, float value) throws IOException {
+        write(fieldInfo.name, String.valueOf(value));
+    }
+
+    @Override
+    public void doubleField(FieldInfo fieldInfo, double value) throws IOException {
+        write(fieldInfo.name, String.valueOf(value));
+    }
+
+    private void write(String name, String value) throws IOException {
+        written.add(name);
+        generator.writeStringField(name, value);
+    }
+}
@@ -0,0 +1,149 @@
+package dev.arseny.service;
+
+import org.apache.lucene.index.IndexNotFoundException;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+// A copy of the latest commit of an index on local storage, which queries read through MMapDirectory
+// instead of going to EFS for every random read. Segment files never change once written, so a sync
+// only copies the files of segments that appeared since the previous one.
+class LocalReplica {
+    private static final Logger LOG = Logger.getLogger(LocalReplica.class);
+
+    private static final int MAX_SYNC_ATTEMPTS = 3;
+
+    final String indexName;
+    final Path sourcePath;
+    final Path localPath;
+    final Directory sourceDirectory;
+    final Directory localDirectory;
+
+    private final long maxBytes;
+
+    LocalReplica(String indexName, Path sourcePath, Path localPath, long maxBytes) throws IOException {
+        this.indexName = indexName;
+        this.sourcePath = sourcePath;
+        this.localPath = localPath;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(localPath);
+        this.sourceDirectory = FSDirectory.open(sourcePath);
+        this.localDirectory = new MMapDirectory(localPath);
+    }
+
+    // Copies the latest commit of the source. Returns false, leaving the replica as it was, when the
+    // commit is larger than maxBytes or doesn't fit into the free local space.
+    synchronized boolean sync() throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return syncLatestCommit();
+            } catch (NoSuchFileException e) {
+                // The commit was deleted by the writer while we were copying it, start over from the newer one.
+                if (attempt >= MAX_SYNC_ATTEMPTS) {
+                    throw e;
+                }
+                LOG.debug("Commit of index " + indexName + " changed during sync, retrying");
+            }
+        }
+    }
+
+    private boolean syncLatestCommit() throws IOException {
+        SegmentInfos segmentInfos;
+        try {
+            segmentInfos = SegmentInfos.readLatestCommit(sourceDirectory);
+        } catch (IndexNotFoundException e) {
+            // Nothing was committed yet, the empty local directory behaves the same.
+            return true;
+        }
+        Collection<String> commitFiles = segmentInfos.files(true);
+
+        long commitBytes = 0;
+        long missingBytes = 0;
+        Set<String> missingFiles = new HashSet<>();
+        for (String fileName : commitFiles) {
+            long length = sourceDirectory.fileLength(fileName);
+            commitBytes += length;
+            Path localFile = localPath.resolve(fileName);
+            if (!Files.exists(localFile) || Files.size(localFile) != length) {
+                missingFiles.add(fileName);
+                missingBytes += length;
+            }
+        }
+        if (commitBytes > maxBytes || missingBytes > Files.getFileStore(localPath).getUsableSpace()) {
+            LOG.info("Index " + indexName + " (" + commitBytes + " bytes) doesn't fit into local storage");
+            return false;
+        }
+
+        // The segments file goes last, so the local directory never points at files that aren't there yet.
+        String segmentsFileName = segmentInfos.getSegmentsFileName();
+        for (String fileName : missingFiles) {
+            if (!fileName.equals(segmentsFileName)) {
+                copy(fileName);
+            }
+        }
+        if (missingFiles.contains(segmentsFileName)) {
+            copy(segmentsFileName);
+        }
+
+        // Files of older commits can go right away, open readers keep their mappings after the unlink.
+        int deleted = 0;
+        try (DirectoryStream<Path> localFiles = Files.newDirectoryStream(localPath)) {
+            for (Path localFile : localFiles) {
+                if (!commitFiles.contains(localFile.getFileName().toString())) {
+                    Files.deleteIfExists(localFile);
+                    deleted++;
+                }
+            }
+        }
+
+        if (!missingFiles.isEmpty()) {
+            LOG.info("Synced " + missingFiles.size() + " files (" + missingBytes + " bytes) of index " + indexName
+                    + ", deleted " + deleted + " old files");
+        }
+        return true;
+    }
+
+    // Copies through a temporary file, so a copy that was cut short is never taken for a complete file.
+    private void copy(String fileName) throws IOException {
+        Path temporaryFile = localPath.resolve(fileName + ".tmp");
+        try (InputStream input = Files.newInputStream(sourcePath.resolve(fileName))) {
+            Files.copy(input, temporaryFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.move(temporaryFile, localPath.resolve(fileName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    void close() throws IOException {
+        try {
+            localDirectory.close();
+            sourceDirectory.close();
+        } finally {
+            delete();
+        }
+    }
+
+    // Removes the local copy, open readers keep their mappings until they are closed.
+    private void delete() throws IOException {
+        if (!Files.exists(localPath)) {
+            return;
+        }
+        try (DirectoryStream<Path> localFiles = Files.newDirectoryStream(localPath)) {
+            for (Path localFile : localFiles) {
+                Files.deleteIfExists(localFile);
+            }
+        }
+        Files.deleteIfExists(localPath);
+    }
+}
@@ -0,0 +1,64 @@
+package dev.arseny.service;
+
+import dev.arseny.model.FieldMapping;
+import dev.arseny.model.IndexMapping;
+import dev.arseny.model.MappingType;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.Query;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+// A classic QueryParser that builds point, doc values and exact term queries for mapped fields.
+public class MappingAwareQueryParser extends QueryParser {
+    private final IndexMapping mapping;
+
+    public MappingAwareQueryParser(String defaultField, IndexMapping mapping) {
+        this(defaultField, mapping, analyzer(mapping));
+    }
+
+    // The analyzer must have been built by analyzer() for the same mapping.
+    public MappingAwareQueryParser(String defaultField, IndexMapping mapping, Analyzer analyzer) {
+        super(defaultField, analyzer);
+        this.mapping = mapping;
+    }
+
+    // Keyword fields are indexed as single terms, so their query text must not be tokenized either.
+    public static Analyzer analyzer(IndexMapping mapping) {
+        Map<String, Analyzer> fieldAnalyzers = new HashMap<>();
+        for (Map.Entry<String, FieldMapping> entry : mapping.getFields().entrySet()) {
+            if (entry.getValue().getType() == MappingType.KEYWORD) {
+                fieldAnalyzers.put(entry.getKey(), new KeywordAnalyzer());
+            }
+        }
+        return new PerFieldAnalyzerWrapper(new StandardAnalyzer(), fieldAnalyzers);
+    }
+
+    @Override
+    protected Query getFieldQuery(String field, String queryText, boolean quoted) throws ParseException {
+        Query query = mappedQuery(() -> MappingQueries.termQuery(mapping, field, queryText));
+        return query != null ? query : super.getFieldQuery(field, queryText, quoted);
+    }
+
+    @Override
+    protected Query getRangeQuery(String field, String part1, String part2, boolean startInclusive,
+                                  boolean endInclusive) throws ParseException {
+        Query query = mappedQuery(() -> MappingQueries.rangeQuery(mapping, field,
+                "*".equals(part1) ? null : part1, "*".equals(part2) ? null : part2, startInclusive, endInclusive));
+        return query != null ? query : super.getRangeQuery(field, part1, part2, startInclusive, endInclusive);
+    }
+
+    private static Query mappedQuery(Supplier<Query> supplier) throws ParseException {
+        try {
+            return supplier.get();
+        } catch (IllegalArgumentException e) {
+            throw new ParseException(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package dev.arseny.service;
+
+import dev.arseny.model.FieldMapping;
+import dev.arseny.model.IndexMapping;
+import dev.arseny.model.MappingType;
+import dev.arseny.model.SortRequest;
+import org.apache.lucene.document.DoublePoint;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexOrDocValuesQuery;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.SortedSetSortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.util.BytesRef;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
+// Builds term, range and sort clauses for mapped fields, using points and doc values instead of
+// terms for numeric and date fields.
+public class MappingQueries {
+
+    public static final String SCORE_SORT_FIELD = "_score";
+
+    // Returns null for fields that are analyzed text, which are left to the query parser.
+    public static Query termQuery(IndexMapping mapping, String field, String value) {
+        FieldMapping fieldMapping = mapping.mappingFor(field);
+        switch (fieldMapping.getType()) {
+            case KEYWORD:
+                if (!fieldMapping.isIndexed() && fieldMapping.hasDocValues()) {
+                    return SortedSetDocValuesField.newSlowExactQuery(field, new BytesRef(value));
+                }
+                return new TermQuery(new Term(field, value));
+            case LONG:
+            case DATE:
+                long longValue = parseLong(fieldMapping.getType(), field, value);
+                return rangeQuery(field, fieldMapping, longValue, longValue);
+            case DOUBLE:
+                double doubleValue = parseDouble(field, value);
+                return doubleRangeQuery(field, fieldMapping, doubleValue, doubleValue);
+            default:
+                return null;
+        }
+    }
+
+    // Bounds may be null for open ranges. Returns null for fields that are analyzed text.
+    public static Query rangeQuery(IndexMapping mapping, String field, String lower, String upper,
+                                   boolean includeLower, boolean includeUpper) {
+        FieldMapping fieldMapping = mapping.mappingFor(field);
+        switch (fieldMapping.getType()) {
+            case KEYWORD:
+                return TermRangeQuery.newStringRange(field, lower, upper, includeLower, includeUpper);
+            case LONG:
+            case DATE: {
+                long min = lower == null ? Long.MIN_VALUE : parseLong(fieldMapping.getType(), field, lower);
+                long max = upper == null ? Long.MAX_VALUE : parseLong(fieldMapping.getType(), field, upper);
+                if (lower != null && !includeLower) {
+                    if (min == Long.MAX_VALUE) {
+                        return new MatchNoDocsQuery();
+                    }
+                    min++;
+                }
+                if (upper != null && !includeUpper) {
+                    if (max == Long.MIN_VALUE) {
+                        return new MatchNoDocsQuery();
+                    }
+                    max--;
+                }
+                return rangeQuery(field, fieldMapping, min, max);
+            }
+            case DOUBLE: {
+                double min = lower == null ? Double.NEGATIVE_INFINITY : parseDouble(field, lower);
+                double max = upper == null ? Double.POSITIVE_INFINITY : parseDouble(field, upper);
+                if (lower != null && !includeLower) {
+                    min = Math.nextUp(min);
+                }
+                if (upper != null && !includeUpper) {
+                    max = Math.nextDown(max);
+                }
+                return doubleRangeQuery(field, fieldMapping, min, max);
+            }
+            default:
+                return null;
+        }
+    }
+
+    // Returns null when no sort was requested, so results are ordered by relevance.
+    public static Sort sort(IndexMapping mapping, List<SortRequest> sortRequests) {
+        if (sortRequests == null || sortRequests.isEmpty()) {
+            return null;
+        }
+
+        SortField[] sortFields = new SortField[sortRequests.size()];
+        for (int i = 0; i < sortRequests.size(); i++) {
+            SortRequest sortRequest = sortRequests.get(i);
+            String field = sortRequest.getField();
+            boolean reverse = sortRequest.isDescending();
+
+            if (SCORE_SORT_FIELD.equals(field)) {
+                // Scores sort in descending order by default.
+                sortFields[i] = new SortField(null, SortField.Type.SCORE, !reverse);
+                continue;
+            }
+
+            FieldMapping fieldMapping = mapping.mappingFor(field);
+            if (!fieldMapping.hasDocValues()) {
+                throw new IllegalArgumentException("Field " + field + " can't be sorted on, it has no doc values");
+            }
+            switch (fieldMapping.getType()) {
+                case KEYWORD:
+                    sortFields[i] = new SortedSetSortField(field, reverse);
+                    break;
+                case LONG:
+                case DATE:
+                    sortFields[i] = new SortField(field, SortField.Type.LONG, reverse);
+                    break;
+                case DOUBLE:
+                    sortFields[i] = new SortField(field, SortField.Type.DOUBLE, reverse);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Field " + field + " can't be sorted on");
+            }
+        }
+        return new Sort(sortFields);
+    }
+
+    // Accepts epoch milliseconds, ISO-8601 instants and offset date-times, and plain dates (taken as UTC midnight).
+    public static long parseDate(String value) {
+        String text = value.trim();
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            // Not epoch milliseconds.
+        }
+        try {
+            return Instant.parse(text).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            // Not an instant.
+        }
+        try {
+            return OffsetDateTime.parse(text).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            // Not a date-time with an offset.
+        }
+        return LocalDate.parse(text).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+    }
+
+    private static Query rangeQuery(String field, FieldMapping fieldMapping, long min, long max) {
+        Query pointQuery = fieldMapping.isIndexed() ? LongPoint.newRangeQuery(field, min, max) : null;
+        Query docValuesQuery = fieldMapping.hasDocValues() ? NumericDocValuesField.newSlowRangeQuery(field, min, max) : null;
+        return combine(field, pointQuery, docValuesQuery);
+    }
+
+    // Double doc values hold raw IEEE bits, which don't sort like the numbers, so only points can be used.
+    private static Query doubleRangeQuery(String field, FieldMapping fieldMapping, double min, double max) {
+        Query pointQuery = fieldMapping.isIndexed() ? DoublePoint.newRangeQuery(field, min, max) : null;
+        return combine(field, pointQuery, null);
+    }
+
+    // With both points and doc values, Lucene picks whichever is cheaper for the rest of the query.
+    private static Query combine(String field, Query pointQuery, Query docValuesQuery) {
+        if (pointQuery != null && docValuesQuery != null) {
+            return new IndexOrDocValuesQuery(pointQuery, docValuesQuery);
+        }
+        if (pointQuery != null) {
+            return pointQuery;
+        }
+        if (docValuesQuery != null) {
+            return docValuesQuery;
+        }
+        throw new IllegalArgumentException("Field " + field + " is not indexed");
+    }
+
+    static long parseLong(MappingType type, String field, String value) {
+        try {
+            return type == MappingType.DATE ? parseDate(value) : Long.parseLong(value.trim());
+        } catch (NumberFormatException | DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid " + type.toJson() + " value for field " + field + ": " + value);
+        }
+    }
+
+    static double parseDouble(String field, String value) {
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid double value for field " + field + ": " + value);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package dev.arseny.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import dev.arseny.EnvUtils;
+import dev.arseny.model.FieldMapping;
+import dev.arseny.model.IndexMapping;
+import dev.arseny.model.MappingType;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.jboss.logging.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Keeps the field mappings of every index. A mapping is stored as mapping.json inside the index
+// directory, next to the Lucene files, and is reloaded when the file changes.
+@ApplicationScoped
+public class MappingService {
+    private static final Logger LOG = Logger.getLogger(MappingService.class);
+
+    static final String MAPPING_FILE_NAME = "mapping.json";
+
+    private static final ObjectReader MAPPING_READER = new ObjectMapper().readerFor(IndexMapping.class);
+    private static final ObjectWriter MAPPING_WRITER = new ObjectMapper().writerFor(IndexMapping.class).withDefaultPrettyPrinter();
+
+    protected long refreshIntervalMillis = EnvUtils.getLong("MAPPING_REFRESH_INTERVAL_MS", 5000);
+
+    private final Map<String, CachedMapping> mappings = new ConcurrentHashMap<>();
+
+    private static class CachedMapping {
+        final IndexMapping mapping;
+        final long lastModified;
+        volatile long lastCheckMillis;
+
+        CachedMapping(IndexMapping mapping, long lastModified) {
+            this.mapping = mapping;
+            this.lastModified = lastModified;
+            this.lastCheckMillis = System.currentTimeMillis();
+        }
+    }
+
+    public IndexMapping getMapping(String indexName) {
+        return getMapping(indexName, refreshIntervalMillis);
+    }
+
+    // Checks for a newer mapping on every call. The indexer builds documents with it, so documents aren't
+    // indexed with the old field types for up to MAPPING_REFRESH_INTERVAL_MS after a mapping update.
+    public IndexMapping getCurrentMapping(String indexName) {
+        return getMapping(indexName, 0);
+    }
+
+    private IndexMapping getMapping(String indexName, long refreshIntervalMillis) {
+        CachedMapping cachedMapping = mappings.get(indexName);
+        long now = System.currentTimeMillis();
+
+        if (cachedMapping != null && now - cachedMapping.lastCheckMillis < refreshIntervalMillis) {
+            return cachedMapping.mapping;
+        }
+
+        long lastModified = lastModified(indexName);
+        if (cachedMapping != null && cachedMapping.lastModified == lastModified) {
+            cachedMapping.lastCheckMillis = now;
+            return cachedMapping.mapping;
+        }
+
+        cachedMapping = new CachedMapping(readMapping(indexName), lastModified);
+        mappings.put(indexName, cachedMapping);
+        return cachedMapping.mapping;
+    }
+
+    // Adds fields to the mapping of an index. Fields that are already mapped can't change their type or
+    // flags, since documents indexed with the old mapping would no longer match queries built for the new
+    // one. Lucene also rejects every document whose fields are indexed differently than in the documents
+    // before it, so the new mapping must index a field like the latest commit does. Unmapped fields that
+    // documents were already indexed with have the implicit text type.
+    public synchronized IndexMapping updateMapping(String indexName, Map<String, FieldMapping> fields) {
+        IndexMapping mapping = readMapping(indexName);
+        Map<String, FieldInfo> indexedFields = null;
+
+        for (Map.Entry<String, FieldMapping> entry : fields.entrySet()) {
+            String name = entry.getKey();
+            FieldMapping fieldMapping = entry.getValue();
+            if (fieldMapping == null || fieldMapping.getType() == null) {
+                throw new IllegalArgumentException("Missing type for field " + name);
+            }
+            if (DocumentBuilder.UUID_FIELD.equals(name)) {
+                throw new IllegalArgumentException("The uuid field can't be mapped");
+            }
+            FieldMapping existing = mapping.getFields().get(name);
+            if (existing != null) {
+                if (existing.getType() != fieldMapping.getType()) {
+                    throw new IllegalArgumentException("Field " + name + " is already mapped as " + existing.getType().toJson());
+                }
+                checkFlag(name, "indexed", existing.isIndexed(), fieldMapping.isIndexed());
+                checkFlag(name, "stored", existing.isStored(), fieldMapping.isStored());
+                checkFlag(name, "docValues", existing.hasDocValues(), fieldMapping.hasDocValues());
+            }
+
+            if (indexedFields == null) {
+                indexedFields = indexedFields(indexName);
+            }
+            FieldInfo fieldInfo = indexedFields.get(name);
+            if (fieldInfo != null && !indexesLike(fieldMapping, fieldInfo)) {
+                throw new IllegalArgumentException("Field " + name + " is already indexed with different options");
+            }
+            mapping.getFields().put(name, fieldMapping);
+        }
+
+        Path mappingFile = mappingFile(indexName);
+        try {
+            Files.createDirectories(mappingFile.getParent());
+            // Write to a temporary file first so readers never see a partially written mapping.
+            Path temporaryFile = Files.createTempFile(mappingFile.getParent(), MAPPING_FILE_NAME, ".tmp");
+            MAPPING_WRITER.writeValue(temporaryFile.toFile(), mapping);
+            Files.move(temporaryFile, mappingFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.error("Error while writing the mapping of index " + indexName, e);
+            throw new RuntimeException(e);
+        }
+
+        mappings.put(indexName, new CachedMapping(mapping, lastModified(indexName)));
+        LOG.info("Updated mapping of index " + indexName + ": " + fields.keySet());
+        return mapping;
+    }
+
+    private IndexMapping readMapping(String indexName) {
+        Path mappingFile = mappingFile(indexName);
+        if (!Files.exists(mappingFile)) {
+            return new IndexMapping();
+        }
+        try {
+            return MAPPING_READER.readValue(mappingFile.toFile());
+        } catch (IOException e) {
+            LOG.error("Error while reading the mapping of index " + indexName, e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void checkFlag(String name, String flag, boolean existing, boolean value) {
+        if (existing != value) {
+            throw new IllegalArgumentException("Field " + name + " is already mapped with " + flag + " " + existing);
+        }
+    }
+
+    // Whether DocumentBuilder indexes a field with the mapping the way the field info describes. Stored
+    // values aren't part of the field info, Lucene accepts them either way.
+    static boolean indexesLike(FieldMapping fieldMapping, FieldInfo fieldInfo) {
+        boolean indexed = fieldMapping.isIndexed();
+        IndexOptions indexOptions = IndexOptions.NONE;
+        DocValuesType docValuesType = DocValuesType.NONE;
+        int pointDimensions = 0;
+        switch (fieldMapping.getType()) {
+            case TEXT:
+                indexOptions = indexed ? IndexOptions.DOCS_AND_FREQS_AND_POSITIONS : IndexOptions.NONE;
+                break;
+            case KEYWORD:
+                indexOptions = indexed ? IndexOptions.DOCS : IndexOptions.NONE;
+                docValuesType = fieldMapping.hasDocValues() ? DocValuesType.SORTED_SET : DocValuesType.NONE;
+                break;
+            case LONG:
+            case DOUBLE:
+            case DATE:
+                pointDimensions = indexed ? 1 : 0;
+                docValuesType = fieldMapping.hasDocValues() ? DocValuesType.NUMERIC : DocValuesType.NONE;
+                break;
+            default:
+        }
+        return fieldInfo.getIndexOptions() == indexOptions && fieldInfo.getDocValuesType() == docValuesType
+                && fieldInfo.getPointDimensionCount() == pointDimensions;
+    }
+
+    // The fields of the documents in the latest commit of the index.
+    private static Map<String, FieldInfo> indexedFields(String indexName) {
+        try (Directory directory = FSDirectory.open(Paths.get(IndexConstants.LUCENE_INDEX_ROOT_DIRECTORY + indexName))) {
+            if (!DirectoryReader.indexExists(directory)) {
+                return Collections.emptyMap();
+            }
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                Map<String, FieldInfo> fieldInfos = new HashMap<>();
+                for (FieldInfo fieldInfo : FieldInfos.getMergedFieldInfos(reader)) {
+                    fieldInfos.put(fieldInfo.name, fieldInfo);
+                }
+                return fieldInfos;
+            }
+        } catch (IOException e) {
+            LOG.error("Error while reading the fields of index " + indexName, e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    private long lastModified(String indexName) {
+        try {
+            return Files.getLastModifiedTime(mappingFile(indexName)).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static Path mappingFile(String indexName) {
+        return Paths.get(IndexConstants.LUCENE_INDEX_ROOT_DIRECTORY + indexName, MAPPING_FILE_NAME);
+    }
+}
@@ -0,0 +1,90 @@
+package dev.arseny.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import dev.arseny.EnvUtils;
+import org.jboss.logging.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Records the stage timings and counters of requests. Every finished request is written to stdout as a
+// CloudWatch embedded metric format (EMF) line, which CloudWatch turns into metrics without API calls,
+// and its timings are added to in-process histograms that are logged as percentiles every now and then.
+@ApplicationScoped
+public class Metrics {
+    private static final Logger LOG = Logger.getLogger(Metrics.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    protected boolean emfEnabled = EnvUtils.getBoolean("METRICS_EMF_ENABLED", true);
+    protected String namespace = EnvUtils.getString("METRICS_NAMESPACE", "LuceneServerless");
+    protected long summaryIntervalMillis = EnvUtils.getLong("METRICS_SUMMARY_INTERVAL_MS", 60000);
+
+    // Keyed by operation and stage, e.g. query.search, in microseconds.
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private volatile long lastSummaryMillis = System.currentTimeMillis();
+
+    public RequestMetrics start(String operation) {
+        return new RequestMetrics(this, operation);
+    }
+
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new Histogram());
+    }
+
+    // Percentiles of every histogram, in milliseconds.
+    public String summary() {
+        StringBuilder summary = new StringBuilder();
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            Histogram histogram = entry.getValue();
+            summary.append(String.format("%s n=%d p50=%.2f p99=%.2f max=%.2f; ", entry.getKey(), histogram.count(),
+                    histogram.percentile(50) / 1000.0, histogram.percentile(99) / 1000.0, histogram.max() / 1000.0));
+        }
+        return summary.toString();
+    }
+
+    void record(RequestMetrics requestMetrics) {
+        synchronized (requestMetrics) {
+            for (Map.Entry<String, Long> entry : requestMetrics.stageNanos.entrySet()) {
+                histogram(requestMetrics.operation + "." + entry.getKey()).record(entry.getValue() / 1000);
+            }
+            if (emfEnabled) {
+                // EMF lines must be plain JSON, without the prefix of the log format.
+                System.out.println(emf(requestMetrics));
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        if (summaryIntervalMillis > 0 && now - lastSummaryMillis >= summaryIntervalMillis) {
+            lastSummaryMillis = now;
+            LOG.info("Metrics: " + summary());
+        }
+    }
+
+    private String emf(RequestMetrics requestMetrics) {
+        ObjectNode root = MAPPER.createObjectNode();
+        ObjectNode directive = root.putObject("_aws").put("Timestamp", System.currentTimeMillis())
+                .putArray("CloudWatchMetrics").addObject();
+        directive.put("Namespace", namespace);
+        directive.putArray("Dimensions").addArray().add("Operation");
+        ArrayNode definitions = directive.putArray("Metrics");
+
+        root.put("Operation", requestMetrics.operation);
+        for (Map.Entry<String, String> entry : requestMetrics.properties.entrySet()) {
+            root.put(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, Long> entry : requestMetrics.stageNanos.entrySet()) {
+            String name = entry.getKey() + "Ms";
+            definitions.addObject().put("Name", name).put("Unit", "Milliseconds");
+            root.put(name, entry.getValue() / 1_000_000.0);
+        }
+        for (Map.Entry<String, Long> entry : requestMetrics.counts.entrySet()) {
+            definitions.addObject().put("Name", entry.getKey()).put("Unit", entry.getKey().endsWith("Bytes") ? "Bytes" : "Count");
+            root.put(entry.getKey(), entry.getValue());
+        }
+        return root.toString();
+    }
+}
@@ -0,0 +1,34 @@
+package dev.arseny.service;
+
+import org.apache.lucene.index.IndexWriter;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// An IndexWriter that is kept open across invocations, together with the changes written since its last commit.
+class PooledIndexWriter {
+    final String indexName;
+    final IndexWriter writer;
+    // Identifies the lock file the writer created, to notice when another container took it over.
+    final List<Object> lockFileKey;
+
+    final AtomicLong pendingDocs = new AtomicLong();
+
+    volatile long lastUsedMillis;
+
+    PooledIndexWriter(String indexName, IndexWriter writer, List<Object> lockFileKey) {
+        this.indexName = indexName;
+        this.writer = writer;
+        this.lockFileKey = lockFileKey;
+        this.lastUsedMillis = System.currentTimeMillis();
+    }
+
+    boolean hasPendingChanges() {
+        return pendingDocs.get() > 0 || writer.hasUncommittedChanges();
+    }
+
+    // Changes recorded while the commit was running stay pending for the next one.
+    void committed(long docs) {
+        pendingDocs.addAndGet(-docs);
+    }
+}
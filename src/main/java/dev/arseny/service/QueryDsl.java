@@ -0,0 +1,310 @@
+package dev.arseny.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import dev.arseny.model.FieldMapping;
+import dev.arseny.model.IndexMapping;
+import dev.arseny.model.MappingType;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.DoublePoint;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DisjunctionMaxQuery;
+import org.apache.lucene.search.FieldExistsQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.util.QueryBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// Compiles the JSON query DSL into Lucene queries. Every query is an object with a single key naming
+// its type:
+//
+//   {"bool": {"must": [...], "should": [...], "filter": [...], "must_not": [...], "minimum_should_match": 1}}
+//   {"term": {"author": "Isaac Asimov"}}            exact value, not analyzed
+//   {"range": {"published": {"gte": "1950-01-01", "lt": "1960-01-01"}}}
+//   {"prefix": {"name": "found"}}
+//   {"match": {"name": "the foundation"}}           analyzed, {"query": ..., "operator": "and"} for all terms
+//   {"match_phrase": {"name": {"query": "the foundation", "slop": 1}}}
+//   {"multi_match": {"query": "asimov", "fields": ["author^2", "name"]}}
+//   {"query_string": {"query": "author:isaac"}}     classic query parser syntax
+//   {"exists": {"field": "published"}}
+//   {"constant_score": {"filter": {...}}}
+//   {"match_all": {}}
+//
+// Field queries also accept {"value": ..., "boost": 2} instead of a plain value, and bool, multi_match,
+// query_string and constant_score take a "boost". Filter and must_not clauses don't score, so Lucene can
+// skip scoring them and cache them in its query cache.
+class QueryDsl {
+    private final IndexMapping mapping;
+    private final Analyzer analyzer;
+    private final QueryBuilder queryBuilder;
+    private final StringParser stringParser;
+
+    // Parses classic query strings for query_string clauses.
+    interface StringParser {
+        Query parse(String queryText) throws ParseException;
+    }
+
+    QueryDsl(IndexMapping mapping, Analyzer analyzer, StringParser stringParser) {
+        this.mapping = mapping;
+        this.analyzer = analyzer;
+        this.queryBuilder = new QueryBuilder(analyzer);
+        this.stringParser = stringParser;
+    }
+
+    Query compile(JsonNode node) throws ParseException {
+        if (node == null || !node.isObject() || node.size() != 1) {
+            throw new IllegalArgumentException("A query must be an object with a single query type, got " + node);
+        }
+        Map.Entry<String, JsonNode> entry = node.fields().next();
+        JsonNode body = entry.getValue();
+
+        switch (entry.getKey()) {
+            case "bool":
+                return boost(bool(body), body);
+            case "term":
+                return fieldQuery(body, (field, value) -> term(field, text(value, field)));
+            case "range":
+                return fieldQuery(body, this::range);
+            case "prefix":
+                return fieldQuery(body, (field, value) -> new PrefixQuery(new Term(field, text(value, field))));
+            case "match":
+                return fieldQuery(body, (field, value) -> match(field, value, text(value.isObject() ? value.get("query") : value, field)));
+            case "match_phrase":
+                return fieldQuery(body, this::matchPhrase);
+            case "multi_match":
+                return boost(multiMatch(body), body);
+            case "query_string":
+                return boost(stringParser.parse(text(body.get("query"), "query_string")), body);
+            case "exists":
+                return exists(text(body.get("field"), "exists"));
+            case "constant_score":
+                return boost(new ConstantScoreQuery(compile(body.get("filter"))), body);
+            case "match_all":
+                return boost(new MatchAllDocsQuery(), body);
+            default:
+                throw new IllegalArgumentException("Unknown query type " + entry.getKey());
+        }
+    }
+
+    private Query bool(JsonNode body) throws ParseException {
+        if (!body.isObject()) {
+            throw new IllegalArgumentException("Expected bool to be an object");
+        }
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        addClauses(builder, body.get("must"), BooleanClause.Occur.MUST);
+        addClauses(builder, body.get("should"), BooleanClause.Occur.SHOULD);
+        addClauses(builder, body.get("filter"), BooleanClause.Occur.FILTER);
+        addClauses(builder, body.get("must_not"), BooleanClause.Occur.MUST_NOT);
+        if (body.has("minimum_should_match")) {
+            builder.setMinimumNumberShouldMatch(body.get("minimum_should_match").asInt());
+        }
+
+        BooleanQuery query = builder.build();
+        if (query.clauses().isEmpty()) {
+            return new MatchAllDocsQuery();
+        }
+        // Lucene matches nothing for a query with only must_not clauses, match everything else instead.
+        boolean onlyProhibited = true;
+        for (BooleanClause clause : query.clauses()) {
+            onlyProhibited &= clause.getOccur() == BooleanClause.Occur.MUST_NOT;
+        }
+        if (onlyProhibited) {
+            builder.add(new MatchAllDocsQuery(), BooleanClause.Occur.FILTER);
+            return builder.build();
+        }
+        return query;
+    }
+
+    // Clauses are either a single query or an array of them.
+    private void addClauses(BooleanQuery.Builder builder, JsonNode clauses, BooleanClause.Occur occur) throws ParseException {
+        if (clauses == null) {
+            return;
+        }
+        if (!clauses.isArray()) {
+            builder.add(compile(clauses), occur);
+            return;
+        }
+        for (JsonNode clause : clauses) {
+            builder.add(compile(clause), occur);
+        }
+    }
+
+    private Query multiMatch(JsonNode body) {
+        String text = text(body.get("query"), "multi_match");
+        JsonNode fields = body.get("fields");
+        if (fields == null || !fields.isArray() || fields.size() == 0) {
+            throw new IllegalArgumentException("Expected multi_match fields to be a non-empty array");
+        }
+
+        // The best matching field decides the score, like a search for the text in each field on its own.
+        List<Query> fieldQueries = new ArrayList<>();
+        for (JsonNode fieldNode : fields) {
+            String field = fieldNode.asText();
+            float boost = 1;
+            int caret = field.lastIndexOf('^');
+            if (caret > 0) {
+                try {
+                    boost = Float.parseFloat(field.substring(caret + 1));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid boost in multi_match field " + field);
+                }
+                field = field.substring(0, caret);
+            }
+            Query fieldQuery = match(field, body, text);
+            fieldQueries.add(boost != 1 ? new BoostQuery(fieldQuery, boost) : fieldQuery);
+        }
+        float tieBreaker = body.has("tie_breaker") ? (float) body.get("tie_breaker").asDouble() : 0;
+        return new DisjunctionMaxQuery(fieldQueries, tieBreaker);
+    }
+
+    // FieldExistsQuery needs norms or doc values and fails at search time without them, so fields that
+    // only have terms or points match any of those instead.
+    private Query exists(String field) {
+        if (DocumentBuilder.UUID_FIELD.equals(field)) {
+            return new TermRangeQuery(field, null, null, true, true);
+        }
+        FieldMapping fieldMapping = mapping.mappingFor(field);
+        MappingType type = fieldMapping.getType();
+        if (type == MappingType.TEXT && fieldMapping.isIndexed()) {
+            return new FieldExistsQuery(field);
+        }
+        if (type != MappingType.TEXT && type != MappingType.STORED && fieldMapping.hasDocValues()) {
+            return new FieldExistsQuery(field);
+        }
+        if (fieldMapping.isIndexed()) {
+            switch (type) {
+                case KEYWORD:
+                    return new TermRangeQuery(field, null, null, true, true);
+                case LONG:
+                case DATE:
+                    return LongPoint.newRangeQuery(field, Long.MIN_VALUE, Long.MAX_VALUE);
+                case DOUBLE:
+                    return DoublePoint.newRangeQuery(field, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+                default:
+            }
+        }
+        throw new IllegalArgumentException("Field " + field + " is neither indexed nor has doc values");
+    }
+
+    private Query term(String field, String value) {
+        Query query = MappingQueries.termQuery(mapping, field, value);
+        return query != null ? query : new TermQuery(new Term(field, value));
+    }
+
+    private Query range(String field, JsonNode bounds) {
+        if (!bounds.isObject()) {
+            throw new IllegalArgumentException("Expected range of field " + field + " to be an object");
+        }
+        String lower = bounds.has("gte") ? text(bounds.get("gte"), field) : bounds.has("gt") ? text(bounds.get("gt"), field) : null;
+        String upper = bounds.has("lte") ? text(bounds.get("lte"), field) : bounds.has("lt") ? text(bounds.get("lt"), field) : null;
+        boolean includeLower = !bounds.has("gt");
+        boolean includeUpper = !bounds.has("lt");
+        Query query = MappingQueries.rangeQuery(mapping, field, lower, upper, includeLower, includeUpper);
+        return query != null ? query : TermRangeQuery.newStringRange(field, lower, upper, includeLower, includeUpper);
+    }
+
+    // Numeric, date and keyword fields match their exact value, text is analyzed into a boolean query.
+    private Query match(String field, JsonNode options, String text) {
+        FieldMapping fieldMapping = mapping.mappingFor(field);
+        if (fieldMapping.getType() != MappingType.TEXT) {
+            return term(field, text);
+        }
+        boolean all = options.isObject() && "and".equalsIgnoreCase(options.path("operator").asText());
+        Query query = queryBuilder.createBooleanQuery(field, text, all ? BooleanClause.Occur.MUST : BooleanClause.Occur.SHOULD);
+        // Text that analyzes to nothing, e.g. only stop words, matches nothing.
+        return query != null ? query : new MatchNoDocsQuery();
+    }
+
+    private Query matchPhrase(String field, JsonNode value) {
+        String text = text(value.isObject() ? value.get("query") : value, field);
+        int slop = value.isObject() ? value.path("slop").asInt(0) : 0;
+        Query query = queryBuilder.createPhraseQuery(field, text, slop);
+        return query != null ? query : new MatchNoDocsQuery();
+    }
+
+    private interface FieldQueryBuilder {
+        Query build(String field, JsonNode value) throws ParseException;
+    }
+
+    // Field queries look like {"field": value} or {"field": {"value": value, "boost": 2}}.
+    private Query fieldQuery(JsonNode body, FieldQueryBuilder builder) throws ParseException {
+        if (body == null || !body.isObject() || body.size() != 1) {
+            throw new IllegalArgumentException("Expected an object with a single field, got " + body);
+        }
+        Iterator<Map.Entry<String, JsonNode>> fields = body.fields();
+        Map.Entry<String, JsonNode> entry = fields.next();
+        JsonNode value = entry.getValue();
+        if (value.isObject() && value.has("value")) {
+            return boost(builder.build(entry.getKey(), value.get("value")), value);
+        }
+        return boost(builder.build(entry.getKey(), value), value);
+    }
+
+    private static Query boost(Query query, JsonNode options) {
+        if (options != null && options.isObject() && options.has("boost")) {
+            float boost = (float) options.get("boost").asDouble();
+            if (boost != 1) {
+                return new BoostQuery(query, boost);
+            }
+        }
+        return query;
+    }
+
+    // Writes a query with the keys of every object sorted, so queries that only differ in key order
+    // share the cache entries keyed by it. Arrays keep their order.
+    static String canonical(JsonNode node) {
+        StringBuilder json = new StringBuilder();
+        appendCanonical(node, json);
+        return json.toString();
+    }
+
+    private static void appendCanonical(JsonNode node, StringBuilder json) {
+        if (node.isObject()) {
+            List<String> names = new ArrayList<>();
+            node.fieldNames().forEachRemaining(names::add);
+            Collections.sort(names);
+            json.append('{');
+            for (int i = 0; i < names.size(); i++) {
+                if (i > 0) {
+                    json.append(',');
+                }
+                json.append(TextNode.valueOf(names.get(i)).toString()).append(':');
+                appendCanonical(node.get(names.get(i)), json);
+            }
+            json.append('}');
+        } else if (node.isArray()) {
+            json.append('[');
+            for (int i = 0; i < node.size(); i++) {
+                if (i > 0) {
+                    json.append(',');
+                }
+                appendCanonical(node.get(i), json);
+            }
+            json.append(']');
+        } else {
+            json.append(node.toString());
+        }
+    }
+
+    private static String text(JsonNode value, String field) {
+        if (value == null || !value.isValueNode() || value.isNull()) {
+            throw new IllegalArgumentException("Expected a value for " + field + ", got " + value);
+        }
+        return value.asText();
+    }
+}
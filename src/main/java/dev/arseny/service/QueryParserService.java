@@ -0,0 +1,109 @@
+package dev.arseny.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import dev.arseny.EnvUtils;
+import dev.arseny.model.IndexMapping;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.Query;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Parses query strings into Lucene queries. The analyzer of an index is built once per mapping and
+// shared, parsers are kept per thread since QueryParser isn't thread-safe, and parsed queries are
+// cached because Query objects are immutable. Everything is rebuilt when the mapping of the index changes.
+// Structured queries in the JSON query DSL are compiled by QueryDsl with the same analyzer and parsers.
+@ApplicationScoped
+public class QueryParserService {
+    public static final String DEFAULT_FIELD = "content";
+
+    protected int maxCachedQueries = EnvUtils.getInt("QUERY_PARSE_CACHE_SIZE", 1000);
+
+    private final Map<String, IndexParsers> parsersByIndex = new LinkedHashMap<>();
+
+    // Access ordered, so iteration starts with the least recently used query.
+    private final LinkedHashMap<String, ParsedQuery> parsedQueries = new LinkedHashMap<>(64, 0.75f, true);
+
+    private static class IndexParsers {
+        final IndexMapping mapping;
+        final Analyzer analyzer;
+        final ThreadLocal<MappingAwareQueryParser> parsers;
+
+        IndexParsers(IndexMapping mapping) {
+            this.mapping = mapping;
+            this.analyzer = MappingAwareQueryParser.analyzer(mapping);
+            this.parsers = ThreadLocal.withInitial(() -> new MappingAwareQueryParser(DEFAULT_FIELD, mapping, analyzer));
+        }
+    }
+
+    private static class ParsedQuery {
+        final IndexMapping mapping;
+        final Query query;
+
+        ParsedQuery(IndexMapping mapping, Query query) {
+            this.mapping = mapping;
+            this.query = query;
+        }
+    }
+
+    public Query parse(String indexName, IndexMapping mapping, String queryText) throws ParseException {
+        String key = indexName + '\u0000' + DEFAULT_FIELD + '\u0000' + queryText;
+        Query query = cachedQuery(key, mapping);
+        if (query == null) {
+            query = parsers(indexName, mapping).parsers.get().parse(queryText);
+            cacheQuery(key, mapping, query);
+        }
+        return query;
+    }
+
+    // Invalid structured queries throw IllegalArgumentException, invalid query_string clauses ParseException.
+    public Query parse(String indexName, IndexMapping mapping, JsonNode queryDsl) throws ParseException {
+        // No field name can be empty, so these keys never clash with those of query strings.
+        String key = indexName + '\u0000' + '\u0000' + QueryDsl.canonical(queryDsl);
+        Query query = cachedQuery(key, mapping);
+        if (query == null) {
+            IndexParsers indexParsers = parsers(indexName, mapping);
+            query = new QueryDsl(mapping, indexParsers.analyzer, text -> indexParsers.parsers.get().parse(text)).compile(queryDsl);
+            cacheQuery(key, mapping, query);
+        }
+        return query;
+    }
+
+    // The text of a structured query that is equal for queries that only differ in key order.
+    public static String canonical(JsonNode queryDsl) {
+        return QueryDsl.canonical(queryDsl);
+    }
+
+    private Query cachedQuery(String key, IndexMapping mapping) {
+        synchronized (parsedQueries) {
+            ParsedQuery parsedQuery = parsedQueries.get(key);
+            // MappingService hands out the same mapping object until the mapping changes.
+            return parsedQuery != null && parsedQuery.mapping == mapping ? parsedQuery.query : null;
+        }
+    }
+
+    private void cacheQuery(String key, IndexMapping mapping, Query query) {
+        if (maxCachedQueries <= 0) {
+            return;
+        }
+        synchronized (parsedQueries) {
+            parsedQueries.put(key, new ParsedQuery(mapping, query));
+            if (parsedQueries.size() > maxCachedQueries) {
+                parsedQueries.remove(parsedQueries.keySet().iterator().next());
+            }
+        }
+    }
+
+    private IndexParsers parsers(String indexName, IndexMapping mapping) {
+        synchronized (parsersByIndex) {
+            IndexParsers indexParsers = parsersByIndex.get(indexName);
+            if (indexParsers == null || indexParsers.mapping != mapping) {
+                indexParsers = new IndexParsers(mapping);
+                parsersByIndex.put(indexName, indexParsers);
+            }
+            return indexParsers;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package dev.arseny.service;
+
+import dev.arseny.EnvUtils;
+import dev.arseny.model.FacetRange;
+import dev.arseny.model.FacetRequest;
+import dev.arseny.model.IndexMapping;
+import dev.arseny.model.QueryRequest;
+import dev.arseny.model.SortRequest;
+import org.jboss.logging.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Keeps the response bodies of recent queries so repeated queries on a warm container skip parsing,
+// searching and serialization. Entries are keyed by the version of the reader they were computed on,
+// and IndexSearcherService drops the entries of an index as soon as it opens a newer reader. An entry is
+// also only returned for the mapping it was computed with, like the parsed queries of QueryParserService.
+@ApplicationScoped
+public class QueryResultCache {
+    private static final Logger LOG = Logger.getLogger(QueryResultCache.class);
+
+    // Rough per entry cost of the map entry, the key and the value objects.
+    private static final long ENTRY_OVERHEAD_BYTES = 128;
+
+    protected long maxBytes = EnvUtils.getLong("QUERY_CACHE_MAX_BYTES", 16L * 1024 * 1024);
+
+    // Access ordered, so iteration starts with the least recently used entry.
+    private final LinkedHashMap<String, CachedResult> results = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalBytes;
+
+    private static class CachedResult {
+        final String indexName;
+        final IndexMapping mapping;
+        final String body;
+        final long sizeInBytes;
+
+        CachedResult(String indexName, IndexMapping mapping, String key, String body) {
+            this.indexName = indexName;
+            this.mapping = mapping;
+            this.body = body;
+            this.sizeInBytes = ENTRY_OVERHEAD_BYTES + 2L * (key.length() + body.length());
+        }
+    }
+
+    // Builds a key that is equal for requests that return the same response from the same reader.
+    // The query text is only trimmed, since whitespace inside phrases and keyword values is significant.
+    // The order of the requested fields doesn't change the response.
+    public static String key(QueryRequest queryRequest, int size, long readerVersion) {
+        StringBuilder key = new StringBuilder();
+        key.append(queryRequest.getIndexName()).append('\u0000').append(readerVersion).append('\u0000');
+        if (queryRequest.getQueryDsl() != null) {
+            // Marked so a query string can never look like a structured query.
+            key.append('\u0001').append(QueryDsl.canonical(queryRequest.getQueryDsl()));
+        } else {
+            key.append(queryRequest.getQuery() == null ? "" : queryRequest.getQuery().trim());
+        }
+        key.append('\u0000').append(size).append('\u0000');
+        if (queryRequest.getSort() != null) {
+            for (SortRequest sortRequest : queryRequest.getSort()) {
+                key.append(sortRequest.getField()).append(sortRequest.isDescending() ? " desc," : " asc,");
+            }
+        }
+        key.append('\u0000');
+        if (queryRequest.getFields() != null) {
+            List<String> fields = new ArrayList<>(queryRequest.getFields());
+            Collections.sort(fields);
+            key.append(String.join(",", fields));
+        }
+        key.append('\u0000');
+        if (queryRequest.getSearchAfter() != null) {
+            key.append(queryRequest.getSearchAfter());
+        }
+        key.append('\u0000');
+        if (queryRequest.getFacets() != null) {
+            for (FacetRequest facetRequest : queryRequest.getFacets()) {
+                key.append(facetRequest.getName()).append('=').append(facetRequest.getField()).append(' ').append(facetRequest.getSize());
+                if (facetRequest.getRanges() != null) {
+                    for (FacetRange range : facetRequest.getRanges()) {
+                        key.append(' ').append(range.getLabel()).append(':').append(range.getFrom()).append(':').append(range.getTo());
+                    }
+                }
+                key.append(',');
+            }
+        }
+        return key.toString();
+    }
+
+    public String get(String key, IndexMapping mapping) {
+        if (maxBytes <= 0) {
+            return null;
+        }
+        synchronized (results) {
+            CachedResult cachedResult = results.get(key);
+            // MappingService hands out the same mapping object until the mapping changes.
+            return cachedResult == null || cachedResult.mapping != mapping ? null : cachedResult.body;
+        }
+    }
+
+    // Responses larger than a tenth of the cache aren't kept, so a few huge pages can't flush all the hot queries.
+    public void put(String indexName, IndexMapping mapping, String key, String body) {
+        CachedResult cachedResult = new CachedResult(indexName, mapping, key, body);
+        if (cachedResult.sizeInBytes > maxBytes / 10) {
+            return;
+        }
+
+        synchronized (results) {
+            CachedResult previous = results.put(key, cachedResult);
+            if (previous != null) {
+                totalBytes -= previous.sizeInBytes;
+            }
+            totalBytes += cachedResult.sizeInBytes;
+
+            Iterator<CachedResult> iterator = results.values().iterator();
+            while (totalBytes > maxBytes && iterator.hasNext()) {
+                totalBytes -= iterator.next().sizeInBytes;
+                iterator.remove();
+            }
+        }
+    }
+
+    // Drops every result of an index, called when its searcher moves to a new reader or is closed.
+    public void invalidate(String indexName) {
+        int removed = 0;
+        synchronized (results) {
+            Iterator<CachedResult> iterator = results.values().iterator();
+            while (iterator.hasNext()) {
+                CachedResult cachedResult = iterator.next();
+                if (cachedResult.indexName.equals(indexName)) {
+                    totalBytes -= cachedResult.sizeInBytes;
+                    iterator.remove();
+                    removed++;
+                }
+            }
+        }
+        if (removed > 0) {
+            LOG.debug("Invalidated " + removed + " cached results of index " + indexName);
+        }
+    }
+}
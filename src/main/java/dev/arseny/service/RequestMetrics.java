@@ -0,0 +1,49 @@
+package dev.arseny.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Timings and counters of a single request, recorded by Metrics when the request finishes. Stages may be
+// timed from several threads, their durations are then added up.
+public class RequestMetrics {
+    private final Metrics metrics;
+    final String operation;
+    private final long startNanos = System.nanoTime();
+    private long markNanos = startNanos;
+
+    final Map<String, Long> stageNanos = new LinkedHashMap<>();
+    final Map<String, Long> counts = new LinkedHashMap<>();
+    final Map<String, String> properties = new LinkedHashMap<>();
+
+    RequestMetrics(Metrics metrics, String operation) {
+        this.metrics = metrics;
+        this.operation = operation;
+    }
+
+    // Ends a stage that started when the previous stage ended, or when the request started.
+    public synchronized void stage(String name) {
+        long now = System.nanoTime();
+        addStage(name, now - markNanos);
+        markNanos = now;
+    }
+
+    public synchronized void addStage(String name, long nanos) {
+        stageNanos.merge(name, nanos, Long::sum);
+    }
+
+    public synchronized void count(String name, long value) {
+        counts.merge(name, value, Long::sum);
+    }
+
+    // Properties are written with the metrics, e.g. the index name, but aren't dimensions.
+    public synchronized void property(String name, String value) {
+        properties.put(name, value);
+    }
+
+    public void finish() {
+        synchronized (this) {
+            stageNanos.put("total", System.nanoTime() - startNanos);
+        }
+        metrics.record(this);
+    }
+}
@@ -0,0 +1,134 @@
+package dev.arseny.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexDeletionPolicy;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.FilterDirectory;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Deletes old commit points once they are neither among the last keepCount commits nor younger than
+// keepMillis. Query functions on other containers may still be reading an older commit from EFS, so
+// commits are kept long enough for them to refresh.
+//
+// Named snapshots pin a commit until they are released, e.g. while a backup copies the index. They
+// are stored as snapshots.json in the index directory so they survive the writer being reopened.
+class RetentionDeletionPolicy extends IndexDeletionPolicy {
+    private static final Logger LOG = Logger.getLogger(RetentionDeletionPolicy.class);
+
+    static final String SNAPSHOTS_FILE_NAME = "snapshots.json";
+    // Commit user data key holding the time of the commit.
+    static final String COMMIT_TIMESTAMP_KEY = "timestamp";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final TypeReference<TreeMap<String, Long>> SNAPSHOTS_TYPE = new TypeReference<TreeMap<String, Long>>() {
+    };
+
+    private final Path indexPath;
+    private final int keepCount;
+    private final long keepMillis;
+
+    // Snapshot name to commit generation.
+    private final Map<String, Long> snapshots;
+    private IndexCommit lastCommit;
+
+    RetentionDeletionPolicy(Path indexPath, int keepCount, long keepMillis) throws IOException {
+        this.indexPath = indexPath;
+        this.keepCount = Math.max(1, keepCount);
+        this.keepMillis = keepMillis;
+        this.snapshots = readSnapshots();
+    }
+
+    @Override
+    public synchronized void onInit(List<? extends IndexCommit> commits) throws IOException {
+        // A new index has no commits yet.
+        if (!commits.isEmpty()) {
+            onCommit(commits);
+        }
+    }
+
+    // Commits are ordered from oldest to newest, and the newest one is always kept.
+    @Override
+    public synchronized void onCommit(List<? extends IndexCommit> commits) throws IOException {
+        long now = System.currentTimeMillis();
+        int deleted = 0;
+        for (int i = 0; i < commits.size() - keepCount; i++) {
+            IndexCommit commit = commits.get(i);
+            if (snapshots.containsValue(commit.getGeneration()) || now - timestamp(commit) < keepMillis) {
+                continue;
+            }
+            commit.delete();
+            deleted++;
+        }
+        lastCommit = commits.get(commits.size() - 1);
+        if (deleted > 0) {
+            LOG.debug("Deleting " + deleted + " old commits of index " + indexPath.getFileName());
+        }
+    }
+
+    // Pins the latest commit under the given name, replacing an older snapshot with the same name.
+    synchronized long snapshot(String name) throws IOException {
+        if (lastCommit == null) {
+            throw new IllegalStateException("No commit to snapshot in index " + indexPath.getFileName());
+        }
+        snapshots.put(name, lastCommit.getGeneration());
+        writeSnapshots();
+        return lastCommit.getGeneration();
+    }
+
+    // The commit is deleted on a later commit, once it is also out of the retention window.
+    synchronized boolean release(String name) throws IOException {
+        if (snapshots.remove(name) == null) {
+            return false;
+        }
+        writeSnapshots();
+        return true;
+    }
+
+    synchronized Map<String, Long> getSnapshots() {
+        return new TreeMap<>(snapshots);
+    }
+
+    // Commits written before timestamps were recorded fall back to the modification time of their segments file.
+    private long timestamp(IndexCommit commit) throws IOException {
+        String timestamp = commit.getUserData().get(COMMIT_TIMESTAMP_KEY);
+        if (timestamp != null) {
+            try {
+                return Long.parseLong(timestamp);
+            } catch (NumberFormatException e) {
+                LOG.warn("Invalid commit timestamp in index " + indexPath.getFileName() + ": " + timestamp);
+            }
+        }
+        if (FilterDirectory.unwrap(commit.getDirectory()) instanceof FSDirectory) {
+            Path segmentsFile = ((FSDirectory) FilterDirectory.unwrap(commit.getDirectory())).getDirectory()
+                    .resolve(commit.getSegmentsFileName());
+            return Files.getLastModifiedTime(segmentsFile).toMillis();
+        }
+        return 0;
+    }
+
+    private Map<String, Long> readSnapshots() throws IOException {
+        Path snapshotsFile = indexPath.resolve(SNAPSHOTS_FILE_NAME);
+        if (!Files.exists(snapshotsFile)) {
+            return new TreeMap<>();
+        }
+        return MAPPER.readValue(snapshotsFile.toFile(), SNAPSHOTS_TYPE);
+    }
+
+    private void writeSnapshots() throws IOException {
+        Path snapshotsFile = indexPath.resolve(SNAPSHOTS_FILE_NAME);
+        // Write to a temporary file first so a crash never leaves a partially written file behind.
+        Path temporaryFile = Files.createTempFile(indexPath, SNAPSHOTS_FILE_NAME, ".tmp");
+        MAPPER.writeValue(temporaryFile.toFile(), snapshots);
+        Files.move(temporaryFile, snapshotsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
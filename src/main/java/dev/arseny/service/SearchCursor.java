@@ -0,0 +1,108 @@
+package dev.arseny.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+// Encodes the last hit of a page as an opaque cursor that the next request hands back as searchAfter.
+// Doc ids break ties between equal hits, so pages stay consistent as long as the index doesn't change
+// between requests. Documents added in between may be skipped or returned twice.
+public class SearchCursor {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    public static String encode(ScoreDoc scoreDoc) {
+        ObjectNode node = MAPPER.createObjectNode();
+        node.put("doc", scoreDoc.doc);
+        if (!Float.isNaN(scoreDoc.score)) {
+            node.put("score", scoreDoc.score);
+        }
+        if (scoreDoc instanceof FieldDoc) {
+            ArrayNode values = node.putArray("fields");
+            for (Object value : ((FieldDoc) scoreDoc).fields) {
+                values.add(encodeValue(value));
+            }
+        }
+        try {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(MAPPER.writeValueAsBytes(node));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Returns a FieldDoc for cursors of sorted queries and a ScoreDoc otherwise.
+    public static ScoreDoc decode(String cursor) {
+        JsonNode node;
+        try {
+            node = MAPPER.readTree(Base64.getUrlDecoder().decode(cursor));
+        } catch (IOException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid searchAfter cursor");
+        }
+        if (node == null || !node.path("doc").isInt()) {
+            throw new IllegalArgumentException("Invalid searchAfter cursor");
+        }
+
+        int doc = node.get("doc").intValue();
+        float score = node.has("score") ? node.get("score").floatValue() : Float.NaN;
+        JsonNode fields = node.get("fields");
+        if (fields == null) {
+            return new ScoreDoc(doc, score);
+        }
+
+        Object[] values = new Object[fields.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = decodeValue(fields.get(i));
+        }
+        return new FieldDoc(doc, score, values);
+    }
+
+    // Sort values are Longs, Doubles, Floats (scores), Integers (doc ids) or BytesRefs (keywords), and keep
+    // their type so Lucene can compare them with the values of the next page.
+    private static JsonNode encodeValue(Object value) {
+        ObjectNode node = MAPPER.createObjectNode();
+        if (value == null) {
+            node.putNull("v");
+        } else if (value instanceof Long) {
+            node.put("t", "l").put("v", (Long) value);
+        } else if (value instanceof Double) {
+            node.put("t", "d").put("v", (Double) value);
+        } else if (value instanceof Float) {
+            node.put("t", "f").put("v", (Float) value);
+        } else if (value instanceof Integer) {
+            node.put("t", "i").put("v", (Integer) value);
+        } else if (value instanceof BytesRef) {
+            node.put("t", "b").put("v", ((BytesRef) value).utf8ToString());
+        } else {
+            throw new IllegalStateException("Unsupported sort value " + value.getClass());
+        }
+        return node;
+    }
+
+    private static Object decodeValue(JsonNode node) {
+        JsonNode value = node.get("v");
+        if (value == null || value.isNull()) {
+            return null;
+        }
+        switch (node.path("t").asText()) {
+            case "l":
+                return value.longValue();
+            case "d":
+                return value.doubleValue();
+            case "f":
+                return value.floatValue();
+            case "i":
+                return value.intValue();
+            case "b":
+                return new BytesRef(value.asText().getBytes(StandardCharsets.UTF_8));
+            default:
+                throw new IllegalArgumentException("Invalid searchAfter cursor");
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package dev.arseny.service;
+
+import org.jboss.logging.Logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Creates the bounded thread pool that searchers run their slices on.
+class SearchExecutors {
+    private static final Logger LOG = Logger.getLogger(SearchExecutors.class);
+
+    // Returns null for a single thread, so segments are searched on the calling thread without handoffs.
+    static ExecutorService create(int threads, boolean virtualThreads) {
+        if (threads <= 1) {
+            return null;
+        }
+
+        ThreadFactory threadFactory = virtualThreads ? virtualThreadFactory() : null;
+        boolean virtual = threadFactory != null;
+        if (!virtual) {
+            AtomicInteger count = new AtomicInteger();
+            threadFactory = runnable -> {
+                Thread thread = new Thread(runnable, "searcher-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), threadFactory);
+        // Idle Lambda containers shouldn't keep threads around.
+        executor.allowCoreThreadTimeOut(true);
+        LOG.info("Searching with " + threads + (virtual ? " virtual" : "") + " threads");
+        return executor;
+    }
+
+    // Thread.ofVirtual() only exists from Java 21 on, so it is looked up reflectively.
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            LOG.info("Virtual threads aren't available, searching with platform threads");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package dev.arseny.service;
+
+// Controls when a cached searcher checks the index directory for a newer commit.
+public enum SearcherRefreshPolicy {
+    // Check for a new commit before every search.
+    EVERY_REQUEST,
+    // Check for a new commit at most once per refresh interval.
+    INTERVAL,
+    // Only check when a refresh is explicitly requested.
+    EXPLICIT;
+
+    public static SearcherRefreshPolicy parse(String value) {
+        for (SearcherRefreshPolicy policy : values()) {
+            if (policy.name().equalsIgnoreCase(value.replace('-', '_'))) {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException("Unknown searcher refresh policy: " + value);
+    }
+}
@@ -0,0 +1,40 @@
+package dev.arseny.service;
+
+import org.apache.lucene.index.CodecReader;
+import org.apache.lucene.index.FilterCodecReader;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SegmentReader;
+
+import java.io.IOException;
+
+// Segment level information of index readers. Leaves may be wrapped, e.g. to hide soft deleted documents.
+public class Segments {
+    // Returns the segment of a leaf, or null if it isn't backed by one.
+    public static SegmentReader segmentReader(LeafReader reader) {
+        LeafReader unwrapped = FilterLeafReader.unwrap(reader);
+        if (unwrapped instanceof CodecReader) {
+            unwrapped = FilterCodecReader.unwrap((CodecReader) unwrapped);
+        }
+        return unwrapped instanceof SegmentReader ? (SegmentReader) unwrapped : null;
+    }
+
+    public static String name(LeafReader reader) {
+        SegmentReader segmentReader = segmentReader(reader);
+        return segmentReader != null ? segmentReader.getSegmentName() : "";
+    }
+
+    // The combined size of the segment files, deleted documents included.
+    public static long sizeInBytes(IndexReader reader) throws IOException {
+        long size = 0;
+        for (LeafReaderContext leaf : reader.leaves()) {
+            SegmentReader segmentReader = segmentReader(leaf.reader());
+            if (segmentReader != null) {
+                size += segmentReader.getSegmentInfo().sizeInBytes();
+            }
+        }
+        return size;
+    }
+}
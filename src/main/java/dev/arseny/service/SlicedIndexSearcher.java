@@ -0,0 +1,28 @@
+package dev.arseny.service;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.IndexSearcher;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+// An IndexSearcher that searches groups of segments (slices) concurrently on an executor. Segments are
+// grouped until a slice holds maxDocsPerSlice documents or maxSegmentsPerSlice segments, so small indexes
+// are still searched by a single task and large ones get one task per slice.
+class SlicedIndexSearcher extends IndexSearcher {
+    private final int maxDocsPerSlice;
+    private final int maxSegmentsPerSlice;
+
+    SlicedIndexSearcher(IndexReader reader, Executor executor, int maxDocsPerSlice, int maxSegmentsPerSlice) {
+        super(reader, executor);
+        this.maxDocsPerSlice = maxDocsPerSlice;
+        this.maxSegmentsPerSlice = maxSegmentsPerSlice;
+    }
+
+    // IndexSearcher computes the slices on first use, after the limits have been set.
+    @Override
+    protected LeafSlice[] slices(List<LeafReaderContext> leaves) {
+        return slices(leaves, maxDocsPerSlice, maxSegmentsPerSlice);
+    }
+}
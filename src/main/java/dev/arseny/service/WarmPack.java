@@ -0,0 +1,175 @@
+package dev.arseny.service;
+
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.jboss.logging.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// A single file holding the segments file of a commit and the small per-segment files that opening a
+// reader loads eagerly: segment and field infos, term index and doc values metadata, norms, stored
+// fields indexes and live docs. A cold query container reads it in one sequential read instead of
+// opening each of these files on EFS.
+//
+// Packs are named warm-<generation>.pack. They don't start with an underscore or "segments", so Lucene
+// leaves them alone, and they are deleted once the commit they belong to is gone.
+class WarmPack {
+    private static final Logger LOG = Logger.getLogger(WarmPack.class);
+
+    private static final String PREFIX = "warm-";
+    private static final String SUFFIX = ".pack";
+    private static final int MAGIC = 0x57504b31;
+
+    private static final Set<String> HOT_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "si", "fnm", "cfe", "liv", "tmd", "tip", "nvm", "nvd", "dvm", "kdm", "kdi", "fdm", "fdx", "vem", "vemf", "vex"));
+
+    static String fileName(long generation) {
+        return PREFIX + Long.toString(generation, Character.MAX_RADIX) + SUFFIX;
+    }
+
+    // Packs the latest commit of the directory unless it already has a pack. Files that aren't hot are only
+    // added while they are smaller than maxFileBytes, smallest first, and the pack stays below maxBytes.
+    static void write(Directory directory, Path indexPath, long maxBytes, long maxFileBytes) throws IOException {
+        SegmentInfos segmentInfos = SegmentInfos.readLatestCommit(directory);
+        Path packFile = indexPath.resolve(fileName(segmentInfos.getGeneration()));
+        if (Files.exists(packFile)) {
+            return;
+        }
+
+        String segmentsFileName = segmentInfos.getSegmentsFileName();
+        List<String> hotFiles = new ArrayList<>();
+        List<String> otherFiles = new ArrayList<>();
+        for (String fileName : segmentInfos.files(false)) {
+            String extension = IndexFileNames.getExtension(fileName);
+            if (extension != null && HOT_EXTENSIONS.contains(extension)) {
+                hotFiles.add(fileName);
+            } else if (directory.fileLength(fileName) <= maxFileBytes) {
+                otherFiles.add(fileName);
+            }
+        }
+        otherFiles.sort(Comparator.comparingLong(fileName -> fileLength(directory, fileName)));
+
+        List<String> packedFiles = new ArrayList<>();
+        packedFiles.add(segmentsFileName);
+        long packBytes = directory.fileLength(segmentsFileName);
+        for (List<String> files : Arrays.asList(hotFiles, otherFiles)) {
+            for (String fileName : files) {
+                long length = directory.fileLength(fileName);
+                if (packBytes + length <= maxBytes) {
+                    packedFiles.add(fileName);
+                    packBytes += length;
+                }
+            }
+        }
+
+        // Write to a temporary file first so readers never see a partially written pack.
+        Path temporaryFile = Files.createTempFile(indexPath, PREFIX, ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile), 64 * 1024))) {
+            output.writeInt(MAGIC);
+            output.writeInt(packedFiles.size());
+            for (String fileName : packedFiles) {
+                output.writeUTF(fileName);
+                output.writeLong(directory.fileLength(fileName));
+            }
+            byte[] buffer = new byte[64 * 1024];
+            for (String fileName : packedFiles) {
+                try (IndexInput input = directory.openInput(fileName, IOContext.READONCE)) {
+                    copy(input, output, buffer);
+                }
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temporaryFile);
+            throw e;
+        }
+        Files.move(temporaryFile, packFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOG.debug("Wrote " + packFile.getFileName() + " with " + packedFiles.size() + " files (" + packBytes + " bytes)");
+
+        deleteStale(indexPath);
+    }
+
+    // Returns the packed files of the commit by name, or null if the commit has no pack.
+    static Map<String, ByteBuffer> read(Path indexPath, long generation) throws IOException {
+        Path packFile = indexPath.resolve(fileName(generation));
+        byte[] pack;
+        try {
+            pack = Files.readAllBytes(packFile);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+
+        ByteBuffer header = ByteBuffer.wrap(pack);
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Invalid warm pack " + packFile);
+        }
+        int count = header.getInt();
+        String[] names = new String[count];
+        long[] lengths = new long[count];
+        for (int i = 0; i < count; i++) {
+            byte[] name = new byte[header.getShort() & 0xffff];
+            header.get(name);
+            // writeUTF uses modified UTF-8, which is plain UTF-8 for Lucene's ASCII file names.
+            names[i] = new String(name, StandardCharsets.UTF_8);
+            lengths[i] = header.getLong();
+        }
+
+        Map<String, ByteBuffer> files = new HashMap<>();
+        int offset = header.position();
+        for (int i = 0; i < count; i++) {
+            files.put(names[i], ByteBuffer.wrap(pack, offset, (int) lengths[i]).slice());
+            offset += (int) lengths[i];
+        }
+        return files;
+    }
+
+    // Deletes packs of commits that no longer exist.
+    private static void deleteStale(Path indexPath) throws IOException {
+        try (DirectoryStream<Path> packs = Files.newDirectoryStream(indexPath, PREFIX + "*" + SUFFIX)) {
+            for (Path pack : packs) {
+                String name = pack.getFileName().toString();
+                String generation = name.substring(PREFIX.length(), name.length() - SUFFIX.length());
+                if (!Files.exists(indexPath.resolve(IndexFileNames.SEGMENTS + "_" + generation))) {
+                    Files.deleteIfExists(pack);
+                }
+            }
+        }
+    }
+
+    private static long fileLength(Directory directory, String fileName) {
+        try {
+            return directory.fileLength(fileName);
+        } catch (IOException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static void copy(IndexInput input, OutputStream output, byte[] buffer) throws IOException {
+        long remaining = input.length();
+        while (remaining > 0) {
+            int count = (int) Math.min(buffer.length, remaining);
+            input.readBytes(buffer, 0, count);
+            output.write(buffer, 0, count);
+            remaining -= count;
+        }
+    }
+}
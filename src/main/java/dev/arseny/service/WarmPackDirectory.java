@@ -0,0 +1,51 @@
+package dev.arseny.service;
+
+import org.apache.lucene.store.ByteBuffersDataInput;
+import org.apache.lucene.store.ByteBuffersIndexInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+
+// Serves the files of a warm pack from memory while a reader is opened, everything else comes from
+// the wrapped directory. Once the reader is open the pack is released, but the inputs the reader keeps
+// hold on to the heap copy of the pack until its segments are gone.
+class WarmPackDirectory extends FilterDirectory {
+    private volatile Map<String, ByteBuffer> packedFiles;
+    final long packBytes;
+
+    WarmPackDirectory(Directory in, Map<String, ByteBuffer> packedFiles) {
+        super(in);
+        this.packedFiles = packedFiles;
+        long bytes = 0;
+        for (ByteBuffer packedFile : packedFiles.values()) {
+            bytes += packedFile.remaining();
+        }
+        this.packBytes = bytes;
+    }
+
+    @Override
+    public IndexInput openInput(String name, IOContext context) throws IOException {
+        ByteBuffer packedFile = packedFiles.get(name);
+        if (packedFile == null) {
+            return in.openInput(name, context);
+        }
+        return new ByteBuffersIndexInput(new ByteBuffersDataInput(Collections.singletonList(packedFile.duplicate())),
+                "WarmPack(" + name + ")");
+    }
+
+    @Override
+    public long fileLength(String name) throws IOException {
+        ByteBuffer packedFile = packedFiles.get(name);
+        return packedFile != null ? packedFile.remaining() : in.fileLength(name);
+    }
+
+    void release() {
+        packedFiles = Collections.emptyMap();
+    }
+}
@@ -0,0 +1,203 @@
+package dev.arseny.service;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SearcherFactory;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+// Warms a refreshed reader before SearcherManager hands it out, so the first queries after an indexing
+// batch don't pay for the cold reads of the new segments. Refreshes run on the refresher thread of
+// IndexSearcherService, queries keep using the previous reader meanwhile. New segments get their norms, doc values and
+// the start of their term dictionaries read, then the most frequent queries of the index are replayed.
+// Warming stops once maxMillis have passed. The first reader of an index isn't warmed, since the query
+// that opens it would wait for the warming as well.
+class WarmingSearcherFactory extends SearcherFactory {
+    private static final Logger LOG = Logger.getLogger(WarmingSearcherFactory.class);
+
+    // How many values are read between two checks of the deadline.
+    private static final int DEADLINE_CHECK_INTERVAL = 4096;
+
+    private final String indexName;
+    private final HotQueries hotQueries;
+    private final int queryCount;
+    private final int maxTerms;
+    private final long maxMillis;
+    private final Executor executor;
+    private final int maxDocsPerSlice;
+    private final int maxSegmentsPerSlice;
+
+    WarmingSearcherFactory(String indexName, HotQueries hotQueries, int queryCount, int maxTerms, long maxMillis,
+                           Executor executor, int maxDocsPerSlice, int maxSegmentsPerSlice) {
+        this.indexName = indexName;
+        this.hotQueries = hotQueries;
+        this.queryCount = queryCount;
+        this.maxTerms = maxTerms;
+        this.maxMillis = maxMillis;
+        this.executor = executor;
+        this.maxDocsPerSlice = maxDocsPerSlice;
+        this.maxSegmentsPerSlice = maxSegmentsPerSlice;
+    }
+
+    @Override
+    public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) throws IOException {
+        IndexSearcher searcher = executor != null
+                ? new SlicedIndexSearcher(reader, executor, maxDocsPerSlice, maxSegmentsPerSlice)
+                : new IndexSearcher(reader);
+        if (previousReader == null || maxMillis <= 0) {
+            return searcher;
+        }
+
+        long start = System.currentTimeMillis();
+        long deadline = start + maxMillis;
+
+        Set<Object> previousSegments = new HashSet<>();
+        for (LeafReaderContext leaf : previousReader.leaves()) {
+            previousSegments.add(coreKey(leaf.reader()));
+        }
+        int warmedSegments = 0;
+        for (LeafReaderContext leaf : reader.leaves()) {
+            if (!previousSegments.contains(coreKey(leaf.reader())) && System.currentTimeMillis() < deadline) {
+                warmSegment(leaf.reader(), new Deadline(deadline));
+                warmedSegments++;
+            }
+        }
+
+        int warmedQueries = 0;
+        for (Query query : hotQueries.top(indexName, queryCount)) {
+            if (System.currentTimeMillis() >= deadline) {
+                break;
+            }
+            searcher.search(query, 10);
+            warmedQueries++;
+        }
+
+        LOG.debug("Warmed " + warmedSegments + " new segments and " + warmedQueries + " queries of index " + indexName
+                + " in " + (System.currentTimeMillis() - start) + "ms");
+        return searcher;
+    }
+
+    private void warmSegment(LeafReader reader, Deadline deadline) throws IOException {
+        for (FieldInfo fieldInfo : reader.getFieldInfos()) {
+            if (deadline.passed()) {
+                return;
+            }
+            String field = fieldInfo.name;
+            if (fieldInfo.hasNorms()) {
+                NumericDocValues norms = reader.getNormValues(field);
+                while (norms != null && norms.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                    norms.longValue();
+                    if (deadline.checkPassed()) {
+                        return;
+                    }
+                }
+            }
+            warmDocValues(reader, fieldInfo, deadline);
+            if (fieldInfo.getIndexOptions() != IndexOptions.NONE) {
+                Terms terms = reader.terms(field);
+                if (terms != null) {
+                    TermsEnum termsEnum = terms.iterator();
+                    for (int i = 0; i < maxTerms && termsEnum.next() != null; i++) {
+                        termsEnum.docFreq();
+                        if (deadline.checkPassed()) {
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void warmDocValues(LeafReader reader, FieldInfo fieldInfo, Deadline deadline) throws IOException {
+        String field = fieldInfo.name;
+        switch (fieldInfo.getDocValuesType()) {
+            case NUMERIC:
+                NumericDocValues numeric = reader.getNumericDocValues(field);
+                while (numeric.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                    numeric.longValue();
+                    if (deadline.checkPassed()) {
+                        return;
+                    }
+                }
+                return;
+            case SORTED_NUMERIC:
+                SortedNumericDocValues sortedNumeric = reader.getSortedNumericDocValues(field);
+                while (sortedNumeric.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                    sortedNumeric.nextValue();
+                    if (deadline.checkPassed()) {
+                        return;
+                    }
+                }
+                return;
+            case SORTED:
+                SortedDocValues sorted = reader.getSortedDocValues(field);
+                while (sorted.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                    sorted.ordValue();
+                    if (deadline.checkPassed()) {
+                        return;
+                    }
+                }
+                return;
+            case SORTED_SET:
+                SortedSetDocValues sortedSet = reader.getSortedSetDocValues(field);
+                while (sortedSet.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                    sortedSet.nextOrd();
+                    if (deadline.checkPassed()) {
+                        return;
+                    }
+                }
+                return;
+            case BINARY:
+                BinaryDocValues binary = reader.getBinaryDocValues(field);
+                while (binary.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                    binary.binaryValue();
+                    if (deadline.checkPassed()) {
+                        return;
+                    }
+                }
+                return;
+            default:
+        }
+    }
+
+    // Reading the clock for every value would cost more than the value, so it is read every few iterations.
+    // Counting iterations instead of testing doc ids also works for sparse fields.
+    private static class Deadline {
+        final long millis;
+        int iterations;
+
+        Deadline(long millis) {
+            this.millis = millis;
+        }
+
+        boolean passed() {
+            return System.currentTimeMillis() >= millis;
+        }
+
+        boolean checkPassed() {
+            return ++iterations % DEADLINE_CHECK_INTERVAL == 0 && passed();
+        }
+    }
+
+    private static Object coreKey(LeafReader reader) {
+        return reader.getCoreCacheHelper() != null ? reader.getCoreCacheHelper().getKey() : reader;
+    }
+}
@@ -0,0 +1,136 @@
+package dev.arseny.perf;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import dev.arseny.handler.IndexHandler;
+import dev.arseny.handler.MappingHandler;
+import dev.arseny.handler.QueryHandler;
+import dev.arseny.service.DirectoryFactory;
+import dev.arseny.service.FacetService;
+import dev.arseny.service.HotQueries;
+import dev.arseny.service.IndexSearcherService;
+import dev.arseny.service.IndexWriterService;
+import dev.arseny.service.IndexingPipeline;
+import dev.arseny.service.MappingService;
+import dev.arseny.service.Metrics;
+import dev.arseny.service.QueryParserService;
+import dev.arseny.service.QueryResultCache;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Wires the handlers and services in-process the way CDI does in the functions, against indexes in a
+// temporary directory instead of EFS. Settings are read when the services are created, so they must be
+// set as system properties before the first fixture is.
+public class HandlerFixture implements AutoCloseable {
+    public static final String ORIGIN = "http://localhost";
+
+    static {
+        try {
+            if (System.getProperty("LUCENE_INDEX_ROOT_DIRECTORY") == null) {
+                System.setProperty("LUCENE_INDEX_ROOT_DIRECTORY",
+                        Files.createTempDirectory("lucene-perf").toString());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        // Metric lines on stdout would end up in the benchmark output.
+        System.setProperty("METRICS_EMF_ENABLED", "false");
+        System.setProperty("METRICS_SUMMARY_INTERVAL_MS", "0");
+        System.setProperty("ALLOWED_ORIGINS", ORIGIN);
+    }
+
+    public final DirectoryFactory directoryFactory = new DirectoryFactory();
+    public final HotQueries hotQueries = new HotQueries();
+    public final QueryResultCache queryResultCache = new QueryResultCache();
+    public final QueryParserService queryParserService = new QueryParserService();
+    public final MappingService mappingService = new MappingService();
+    public final Metrics metrics = new Metrics();
+
+    public final IndexWriterService indexWriterService = new IndexWriterService() {{
+        directoryFactory = HandlerFixture.this.directoryFactory;
+    }};
+
+    public final IndexSearcherService indexSearcherService = new IndexSearcherService() {{
+        directoryFactory = HandlerFixture.this.directoryFactory;
+        queryResultCache = HandlerFixture.this.queryResultCache;
+        hotQueries = HandlerFixture.this.hotQueries;
+    }};
+
+    public final IndexingPipeline indexingPipeline = new IndexingPipeline() {{
+        indexWriterService = HandlerFixture.this.indexWriterService;
+        mappingService = HandlerFixture.this.mappingService;
+    }};
+
+    public final IndexHandler indexHandler = new IndexHandler() {{
+        indexWriterService = HandlerFixture.this.indexWriterService;
+        indexingPipeline = HandlerFixture.this.indexingPipeline;
+        metrics = HandlerFixture.this.metrics;
+    }};
+
+    public final QueryHandler queryHandler = new QueryHandler() {{
+        indexSearcherService = HandlerFixture.this.indexSearcherService;
+        mappingService = HandlerFixture.this.mappingService;
+        queryResultCache = HandlerFixture.this.queryResultCache;
+        hotQueries = HandlerFixture.this.hotQueries;
+        queryParserService = HandlerFixture.this.queryParserService;
+        facetService = new FacetService();
+        metrics = HandlerFixture.this.metrics;
+    }};
+
+    public final MappingHandler mappingHandler = new MappingHandler() {{
+        mappingService = HandlerFixture.this.mappingService;
+    }};
+
+    public static SQSEvent sqsEvent(List<String> payloads) {
+        List<SQSEvent.SQSMessage> records = new ArrayList<>();
+        for (String payload : payloads) {
+            SQSEvent.SQSMessage record = new SQSEvent.SQSMessage();
+            record.setMessageId("message-" + records.size());
+            record.setBody(payload);
+            records.add(record);
+        }
+        SQSEvent event = new SQSEvent();
+        event.setRecords(records);
+        return event;
+    }
+
+    public static APIGatewayProxyRequestEvent requestEvent(String body) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Origin", ORIGIN);
+        headers.put("Accept-Encoding", "gzip");
+        return new APIGatewayProxyRequestEvent().withHttpMethod("POST").withHeaders(headers).withBody(body);
+    }
+
+    public void map(String mappingBody) {
+        check(mappingHandler.handleRequest(requestEvent(mappingBody), null));
+    }
+
+    public void index(List<String> payloads) {
+        indexHandler.handleRequest(sqsEvent(payloads), null);
+    }
+
+    public APIGatewayProxyResponseEvent query(String body) {
+        return check(queryHandler.handleRequest(requestEvent(body), null));
+    }
+
+    // A benchmark that measures error responses measures the wrong thing.
+    private static APIGatewayProxyResponseEvent check(APIGatewayProxyResponseEvent response) {
+        if (response.getStatusCode() != 200) {
+            throw new IllegalStateException("Request failed with " + response.getStatusCode() + ": " + response.getBody());
+        }
+        return response;
+    }
+
+    @Override
+    public void close() {
+        indexSearcherService.closeAll();
+        indexWriterService.closeAll();
+        indexingPipeline.shutdown();
+    }
+}
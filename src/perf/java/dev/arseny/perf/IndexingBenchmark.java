@@ -0,0 +1,60 @@
+package dev.arseny.perf;
+
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Time to index one SQS batch through IndexHandler: decoding, writing and committing it.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class IndexingBenchmark {
+    @Param({"1", "100"})
+    public int documentsPerMessage;
+
+    @Param({"10"})
+    public int messagesPerBatch;
+
+    private HandlerFixture fixture;
+    private final List<SQSEvent> events = new ArrayList<>();
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        fixture = new HandlerFixture();
+        SyntheticCorpus corpus = new SyntheticCorpus("indexing-" + System.nanoTime(), 42);
+        fixture.map(corpus.mappingBody());
+        // Enough distinct batches that the payloads don't stay in the CPU caches.
+        for (List<String> batch : corpus.batches(documentsPerMessage * messagesPerBatch * 64, documentsPerMessage, messagesPerBatch)) {
+            events.add(HandlerFixture.sqsEvent(batch));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.close();
+    }
+
+    @Benchmark
+    public void indexBatch() {
+        fixture.indexHandler.handleRequest(events.get(next++ % events.size()), null);
+    }
+}
@@ -0,0 +1,344 @@
+package dev.arseny.perf;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import dev.arseny.service.Histogram;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// Replays recorded traffic against the handlers in-process, with a local directory standing in for EFS
+// and an in-memory queue standing in for SQS, and reports throughput and latency per endpoint.
+//
+// The traffic file holds one request per line: {"type": "mapping" | "index" | "query", "body": {...}}.
+// Mappings are applied when they are read. Index messages before the first query seed the indexes and
+// are indexed before the replay starts, since queries of an index that was never committed fail.
+// Queries and index messages are sent at the target rate whether or not earlier requests have finished,
+// so latencies include the time requests waited for a free thread, as they would behind API Gateway.
+// Index messages are consumed in batches like the SQS
+// event source does, and their latency runs from being enqueued to being indexed.
+public class LoadHarness {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final String USAGE = "Usage: LoadHarness <traffic.jsonl> [--rate <requests/s>] [--concurrency <threads>]"
+            + " [--duration <s>] [--batch-size <messages>] [--batch-window-ms <ms>] [--report <file.json>]\n"
+            + "       LoadHarness --generate <traffic.jsonl> [--documents <count>] [--queries <count>]";
+
+    private double rate = 100;
+    private int concurrency = 8;
+    // 0 replays the file once, otherwise it is replayed in a loop for this long.
+    private long durationSeconds = 0;
+    // The SQS event source of the index function collects up to 5000 messages for up to 5 seconds.
+    private int batchSize = 5000;
+    private long batchWindowMillis = 5000;
+    private String reportFile;
+
+    private final HandlerFixture fixture;
+    private final Map<String, Histogram> latencies = new LinkedHashMap<>();
+    private final Map<String, LongAdder> errors = new LinkedHashMap<>();
+    private final BlockingQueue<QueuedMessage> queue = new LinkedBlockingQueue<>();
+    private final AtomicBoolean sending = new AtomicBoolean(true);
+
+    private static class QueuedMessage {
+        final String body;
+        final long enqueuedNanos;
+
+        QueuedMessage(String body, long enqueuedNanos) {
+            this.body = body;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    LoadHarness(HandlerFixture fixture) {
+        this.fixture = fixture;
+        for (String endpoint : new String[]{"query", "index.message", "index.batch"}) {
+            latencies.put(endpoint, new Histogram());
+            errors.put(endpoint, new LongAdder());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        if ("--generate".equals(args[0])) {
+            generate(args);
+            return;
+        }
+
+        try (HandlerFixture fixture = new HandlerFixture()) {
+            LoadHarness harness = new LoadHarness(fixture);
+            for (int i = 1; i < args.length; i += 2) {
+                String value = option(args, i);
+                switch (args[i]) {
+                    case "--rate": harness.rate = Double.parseDouble(value); break;
+                    case "--concurrency": harness.concurrency = Integer.parseInt(value); break;
+                    case "--duration": harness.durationSeconds = Long.parseLong(value); break;
+                    case "--batch-size": harness.batchSize = Integer.parseInt(value); break;
+                    case "--batch-window-ms": harness.batchWindowMillis = Long.parseLong(value); break;
+                    case "--report": harness.reportFile = value; break;
+                    default: throw new IllegalArgumentException("Unknown option " + args[i] + "\n" + USAGE);
+                }
+            }
+            harness.run(readTraffic(args[0]));
+        }
+    }
+
+    void run(List<JsonNode> traffic) throws Exception {
+        int seeded = seed(traffic);
+        if (seeded > 0) {
+            traffic = traffic.subList(seeded, traffic.size());
+        }
+
+        ExecutorService queryPool = Executors.newFixedThreadPool(concurrency);
+        Thread indexer = new Thread(this::consumeQueue, "indexer");
+        indexer.start();
+
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long startNanos = System.nanoTime();
+        long endNanos = startNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long sent = 0;
+        do {
+            for (JsonNode request : traffic) {
+                String type = request.path("type").asText();
+                String bodyText = bodyText(request);
+                if ("mapping".equals(type)) {
+                    fixture.map(bodyText);
+                    continue;
+                }
+
+                // Requests are due at fixed intervals, latencies are measured from when they were due.
+                long dueNanos = startNanos + sent++ * intervalNanos;
+                sleepUntil(dueNanos);
+                if ("index".equals(type)) {
+                    queue.add(new QueuedMessage(bodyText, dueNanos));
+                } else if ("query".equals(type)) {
+                    queryPool.execute(() -> query(bodyText, dueNanos));
+                } else {
+                    throw new IllegalArgumentException("Unknown request type " + type);
+                }
+            }
+        } while (System.nanoTime() < endNanos);
+
+        queryPool.shutdown();
+        queryPool.awaitTermination(1, TimeUnit.HOURS);
+        sending.set(false);
+        indexer.join();
+        report(System.nanoTime() - startNanos);
+    }
+
+    // Indexes the mappings and index messages before the first query in one batch, returns their number.
+    private int seed(List<JsonNode> traffic) {
+        List<String> payloads = new ArrayList<>();
+        int count = 0;
+        for (JsonNode request : traffic) {
+            String type = request.path("type").asText();
+            if ("mapping".equals(type)) {
+                fixture.map(bodyText(request));
+            } else if ("index".equals(type)) {
+                payloads.add(bodyText(request));
+            } else {
+                break;
+            }
+            count++;
+        }
+        if (!payloads.isEmpty()) {
+            fixture.index(payloads);
+            System.out.println("Seeded the indexes with " + payloads.size() + " messages");
+        }
+        return count;
+    }
+
+    private void query(String body, long dueNanos) {
+        boolean success;
+        try {
+            APIGatewayProxyResponseEvent response = fixture.queryHandler.handleRequest(HandlerFixture.requestEvent(body), null);
+            success = response.getStatusCode() == 200;
+        } catch (RuntimeException e) {
+            success = false;
+        }
+        record("query", dueNanos, success);
+    }
+
+    private static String bodyText(JsonNode request) {
+        JsonNode body = request.get("body");
+        return body.isTextual() ? body.asText() : body.toString();
+    }
+
+    private void consumeQueue() {
+        List<QueuedMessage> batch = new ArrayList<>();
+        try {
+            while (sending.get() || !queue.isEmpty()) {
+                QueuedMessage first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long windowEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchWindowMillis);
+                while (batch.size() < batchSize && sending.get()) {
+                    QueuedMessage message = queue.poll(Math.max(0, windowEnd - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    if (message == null) {
+                        break;
+                    }
+                    batch.add(message);
+                }
+                queue.drainTo(batch, batchSize - batch.size());
+
+                List<String> payloads = new ArrayList<>();
+                for (QueuedMessage message : batch) {
+                    payloads.add(message.body);
+                }
+                long batchStart = System.nanoTime();
+                boolean success = true;
+                try {
+                    fixture.index(payloads);
+                } catch (RuntimeException e) {
+                    // A failing batch would be retried by SQS, here it is only counted.
+                    success = false;
+                }
+                record("index.batch", batchStart, success);
+                for (QueuedMessage message : batch) {
+                    record("index.message", message.enqueuedNanos, success);
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void record(String endpoint, long startNanos, boolean success) {
+        latencies.get(endpoint).record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+        if (!success) {
+            errors.get(endpoint).increment();
+        }
+    }
+
+    private void report(long elapsedNanos) throws IOException {
+        double seconds = elapsedNanos / 1e9;
+        ObjectNode report = MAPPER.createObjectNode();
+        report.put("seconds", seconds).put("rate", rate).put("concurrency", concurrency).put("batchSize", batchSize);
+
+        System.out.printf("%-14s %8s %7s %9s %9s %9s %9s %9s %9s%n",
+                "endpoint", "count", "errors", "per s", "mean ms", "p50 ms", "p90 ms", "p99 ms", "max ms");
+        for (Map.Entry<String, Histogram> entry : latencies.entrySet()) {
+            Histogram histogram = entry.getValue();
+            long count = histogram.count();
+            if (count == 0) {
+                continue;
+            }
+            long errorCount = errors.get(entry.getKey()).sum();
+            System.out.printf("%-14s %8d %7d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n", entry.getKey(), count, errorCount,
+                    count / seconds, histogram.mean() / 1000, histogram.percentile(50) / 1000.0,
+                    histogram.percentile(90) / 1000.0, histogram.percentile(99) / 1000.0, histogram.max() / 1000.0);
+
+            report.putObject(entry.getKey())
+                    .put("count", count)
+                    .put("errors", errorCount)
+                    .put("throughput", count / seconds)
+                    .put("meanMs", histogram.mean() / 1000)
+                    .put("p50Ms", histogram.percentile(50) / 1000.0)
+                    .put("p90Ms", histogram.percentile(90) / 1000.0)
+                    .put("p99Ms", histogram.percentile(99) / 1000.0)
+                    .put("p999Ms", histogram.percentile(99.9) / 1000.0)
+                    .put("maxMs", histogram.max() / 1000.0);
+        }
+        if (reportFile != null) {
+            MAPPER.writerWithDefaultPrettyPrinter().writeValue(Paths.get(reportFile).toFile(), report);
+        }
+    }
+
+    private static List<JsonNode> readTraffic(String file) throws IOException {
+        List<JsonNode> traffic = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    traffic.add(MAPPER.readTree(line));
+                }
+            }
+        }
+        return traffic;
+    }
+
+    // Writes synthetic traffic for when no recording is at hand: the mapping and half of the documents to
+    // seed the index, then the other half in index messages of 10 documents interleaved with a query mix.
+    private static void generate(String[] args) throws IOException {
+        if (args.length < 2) {
+            throw new IllegalArgumentException(USAGE);
+        }
+        int documents = 10000;
+        int queries = 10000;
+        for (int i = 2; i < args.length; i += 2) {
+            String value = option(args, i);
+            switch (args[i]) {
+                case "--documents": documents = Integer.parseInt(value); break;
+                case "--queries": queries = Integer.parseInt(value); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i] + "\n" + USAGE);
+            }
+        }
+
+        SyntheticCorpus corpus = new SyntheticCorpus("load", 42);
+        List<String> queryBodies = corpus.queries("mix", queries, 10);
+        int seedDocuments = documents / 2;
+        int messages = (documents - seedDocuments + 9) / 10;
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(args[1]), StandardCharsets.UTF_8)) {
+            writeLine(writer, "mapping", corpus.mappingBody());
+            for (int id = 0; id < seedDocuments; id += 100) {
+                writeLine(writer, "index", corpus.payload(id, Math.min(100, seedDocuments - id)));
+            }
+            int total = messages + queries;
+            int written = 0;
+            for (int i = 0; i < total; i++) {
+                // Spreads the index messages evenly between the queries.
+                if (written < messages && (long) i * messages >= (long) written * total) {
+                    int firstId = seedDocuments + written * 10;
+                    writeLine(writer, "index", corpus.payload(firstId, Math.min(10, documents - firstId)));
+                    written++;
+                } else {
+                    writeLine(writer, "query", queryBodies.get(i - written));
+                }
+            }
+        }
+    }
+
+    private static void writeLine(BufferedWriter writer, String type, String body) throws IOException {
+        ObjectNode line = MAPPER.createObjectNode();
+        line.put("type", type);
+        line.set("body", MAPPER.readTree(body));
+        writer.write(line.toString());
+        writer.newLine();
+    }
+
+    private static String option(String[] args, int i) {
+        if (i + 1 >= args.length) {
+            throw new IllegalArgumentException("Missing value of " + args[i] + "\n" + USAGE);
+        }
+        return args[i + 1];
+    }
+
+    private static void sleepUntil(long nanos) throws InterruptedException {
+        long remaining = nanos - System.nanoTime();
+        if (remaining > 0) {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        }
+    }
+}
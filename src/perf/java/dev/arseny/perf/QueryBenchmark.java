@@ -0,0 +1,63 @@
+package dev.arseny.perf;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Latency of QueryHandler requests against a committed index of the given size, from the request event
+// to the compressed response. The query result cache is disabled, every request searches the index.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-DQUERY_CACHE_MAX_BYTES=0")
+public class QueryBenchmark {
+    @Param({"10000", "100000"})
+    public int corpusSize;
+
+    @Param({"mix", "term", "boolean", "phrase", "range", "sorted", "facets", "dsl"})
+    public String queryType;
+
+    @Param({"10"})
+    public int size;
+
+    private HandlerFixture fixture;
+    private List<String> queries;
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        fixture = new HandlerFixture();
+        SyntheticCorpus corpus = new SyntheticCorpus("query-" + corpusSize + "-" + System.nanoTime(), 42);
+        fixture.map(corpus.mappingBody());
+        for (List<String> batch : corpus.batches(corpusSize, 100, 10)) {
+            fixture.index(batch);
+        }
+        queries = corpus.queries(queryType, 1024, size);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.close();
+    }
+
+    @Benchmark
+    public String query() {
+        return fixture.query(queries.get(Math.floorMod(next.getAndIncrement(), queries.size()))).getBody();
+    }
+}
@@ -0,0 +1,98 @@
+package dev.arseny.perf;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import dev.arseny.RequestUtils;
+import dev.arseny.model.QueryRequest;
+import dev.arseny.model.QueryResponse;
+import dev.arseny.service.JsonFieldsVisitor;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.ScoreDoc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// The request and response ends of a query: parsing the request body, writing the stored fields of the
+// hits as JSON, and compressing the response.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class SerializationBenchmark {
+    @Param({"10", "100", "1000"})
+    public int size;
+
+    private HandlerFixture fixture;
+    private IndexSearcher searcher;
+    private StoredFields storedFields;
+    private ScoreDoc[] scoreDocs;
+    private APIGatewayProxyRequestEvent requestEvent;
+    private APIGatewayProxyResponseEvent response;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        fixture = new HandlerFixture();
+        String indexName = "serialization-" + System.nanoTime();
+        SyntheticCorpus corpus = new SyntheticCorpus(indexName, 42);
+        fixture.map(corpus.mappingBody());
+        for (List<String> batch : corpus.batches(size, 100, 10)) {
+            fixture.index(batch);
+        }
+
+        searcher = fixture.indexSearcherService.acquire(indexName);
+        storedFields = searcher.storedFields();
+        scoreDocs = searcher.search(new MatchAllDocsQuery(), size).scoreDocs;
+        requestEvent = HandlerFixture.requestEvent(corpus.queries("mix", 1, size).get(0));
+        response = writeResponse();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.indexSearcherService.release(searcher);
+        fixture.close();
+    }
+
+    @Benchmark
+    public QueryRequest parseRequest() {
+        return RequestUtils.parseQueryRequest(requestEvent);
+    }
+
+    @Benchmark
+    public APIGatewayProxyResponseEvent writeResponse() throws IOException {
+        QueryResponse queryResponse = new QueryResponse();
+        queryResponse.setTotalDocuments(String.valueOf(scoreDocs.length));
+        return RequestUtils.successResponse(queryResponse, generator -> {
+            JsonFieldsVisitor visitor = new JsonFieldsVisitor(generator, null);
+            for (ScoreDoc scoreDoc : scoreDocs) {
+                visitor.writeDocument(storedFields, scoreDoc.doc);
+            }
+        });
+    }
+
+    @Benchmark
+    public APIGatewayProxyResponseEvent compressResponse() {
+        // compress() replaces the body, so every invocation starts from a copy of the plain response.
+        APIGatewayProxyResponseEvent copy = new APIGatewayProxyResponseEvent().withStatusCode(200)
+                .withBody(response.getBody()).withHeaders(new HashMap<>());
+        return RequestUtils.compress(copy, "gzip", 1);
+    }
+}
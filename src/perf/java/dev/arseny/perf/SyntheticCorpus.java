@@ -0,0 +1,131 @@
+package dev.arseny.perf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Generates reproducible documents, SQS payloads and queries. Words are drawn from a skewed distribution
+// over a fixed vocabulary, so a few terms match many documents and most match few, as in natural text.
+public class SyntheticCorpus {
+    public static final String MAPPING = "\"fields\":{"
+            + "\"category\":{\"type\":\"keyword\"},"
+            + "\"year\":{\"type\":\"long\"},"
+            + "\"price\":{\"type\":\"double\"}}";
+
+    public static final String[] QUERY_TYPES = {"term", "boolean", "phrase", "range", "sorted", "facets", "dsl"};
+
+    private static final int VOCABULARY_SIZE = 20000;
+    private static final int CATEGORIES = 50;
+
+    private final String indexName;
+    private final Random random;
+    private final String[] vocabulary = new String[VOCABULARY_SIZE];
+
+    public SyntheticCorpus(String indexName, long seed) {
+        this.indexName = indexName;
+        this.random = new Random(seed);
+        for (int i = 0; i < VOCABULARY_SIZE; i++) {
+            vocabulary[i] = word(i);
+        }
+    }
+
+    public String mappingBody() {
+        return "{\"indexName\":\"" + indexName + "\"," + MAPPING + "}";
+    }
+
+    // One SQS message body with documents numbered from firstId.
+    public String payload(int firstId, int documents) {
+        StringBuilder payload = new StringBuilder("{\"indexName\":\"").append(indexName).append("\",\"documents\":[");
+        for (int id = firstId; id < firstId + documents; id++) {
+            if (id > firstId) {
+                payload.append(',');
+            }
+            payload.append("{\"uuid\":\"").append(id)
+                    .append("\",\"title\":\"").append(words(3 + random.nextInt(8)))
+                    .append("\",\"body\":\"").append(words(50 + random.nextInt(200)))
+                    .append("\",\"category\":\"c").append(random.nextInt(CATEGORIES))
+                    .append("\",\"year\":").append(1950 + random.nextInt(75))
+                    .append(",\"price\":").append(random.nextInt(100000) / 100.0)
+                    .append('}');
+        }
+        return payload.append("]}").toString();
+    }
+
+    // SQS batches of the given number of messages, covering documents 0 to documents - 1.
+    public List<List<String>> batches(int documents, int documentsPerMessage, int messagesPerBatch) {
+        List<List<String>> batches = new ArrayList<>();
+        List<String> batch = new ArrayList<>();
+        for (int id = 0; id < documents; id += documentsPerMessage) {
+            batch.add(payload(id, Math.min(documentsPerMessage, documents - id)));
+            if (batch.size() == messagesPerBatch) {
+                batches.add(batch);
+                batch = new ArrayList<>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    // Query request bodies of one type, or of all types in turn with "mix".
+    public List<String> queries(String type, int count, int size) {
+        List<String> queries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String queryType = "mix".equals(type) ? QUERY_TYPES[i % QUERY_TYPES.length] : type;
+            queries.add(query(queryType, size));
+        }
+        return queries;
+    }
+
+    private String query(String type, int size) {
+        String prefix = "{\"indexName\":\"" + indexName + "\",\"size\":" + size + ",";
+        switch (type) {
+            case "term":
+                return prefix + "\"query\":\"body:" + word() + "\"}";
+            case "boolean":
+                return prefix + "\"query\":\"title:" + word() + " OR (body:" + word() + " AND body:" + word() + ")\"}";
+            case "phrase":
+                return prefix + "\"query\":\"body:\\\"" + word() + " " + word() + "\\\"~2\"}";
+            case "range":
+                int from = 1950 + random.nextInt(70);
+                return prefix + "\"query\":\"body:" + word() + " AND year:[" + from + " TO " + (from + 5) + "]\"}";
+            case "sorted":
+                return prefix + "\"query\":\"body:" + word() + "\",\"sort\":[{\"field\":\"year\",\"order\":\"desc\"}]}";
+            case "facets":
+                return prefix + "\"query\":\"body:" + word() + "\",\"facets\":[{\"field\":\"category\"},"
+                        + "{\"field\":\"price\",\"ranges\":[{\"to\":100},{\"from\":100,\"to\":500},{\"from\":500}]}]}";
+            case "dsl":
+                return prefix + "\"query\":{\"bool\":{\"must\":[{\"match\":{\"body\":\"" + word() + " " + word() + "\"}}],"
+                        + "\"filter\":[{\"term\":{\"category\":\"c" + random.nextInt(CATEGORIES) + "\"}}]}}}";
+            default:
+                throw new IllegalArgumentException("Unknown query type " + type);
+        }
+    }
+
+    private String words(int count) {
+        StringBuilder words = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                words.append(' ');
+            }
+            words.append(word());
+        }
+        return words.toString();
+    }
+
+    // Cubing a uniform value skews the draws towards the start of the vocabulary.
+    private String word() {
+        double uniform = random.nextDouble();
+        return vocabulary[(int) (uniform * uniform * uniform * VOCABULARY_SIZE)];
+    }
+
+    private static String word(int index) {
+        StringBuilder word = new StringBuilder();
+        do {
+            word.append((char) ('a' + index % 26));
+            index /= 26;
+        } while (index > 0);
+        return word.append("x").toString();
+    }
+}
@@ -0,0 +1,203 @@
+package dev.arseny.service
+
+import org.apache.lucene.store.Directory
+import org.apache.lucene.store.FSDirectory
+import org.apache.lucene.store.IOContext
+import org.apache.lucene.store.IndexInput
+import spock.lang.*
+
+import java.nio.file.Files
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
+class BlockCacheTest extends Specification {
+    static final int BLOCK_SIZE = 1024
+    // Not a multiple of the block size, so the last block is partial.
+    static final int FILE_LENGTH = 10 * BLOCK_SIZE + 300
+
+    def path = Files.createTempDirectory("block-cache")
+    Directory directory = FSDirectory.open(path)
+    byte[] data = new byte[FILE_LENGTH]
+    def inputs = []
+
+    def setup() {
+        new Random(42).nextBytes(data)
+        def output = directory.createOutput("file", IOContext.DEFAULT)
+        output.writeBytes(data, data.length)
+        output.close()
+    }
+
+    def cleanup() {
+        inputs.each { it.close() }
+        directory.close()
+        path.toFile().deleteDir()
+    }
+
+    private IndexInput cached(BlockCache blockCache, int readAheadBlocks = 0) {
+        def input = new BlockCacheIndexInput(directory.openInput("file", IOContext.DEFAULT), "index", "file",
+                blockCache, readAheadBlocks)
+        inputs << input
+        input
+    }
+
+    private static byte[] read(IndexInput input, long position, int length) {
+        def bytes = new byte[length]
+        input.seek(position)
+        input.readBytes(bytes, 0, length)
+        bytes
+    }
+
+    private byte[] expected(long position, int length) {
+        Arrays.copyOfRange(data, (int) position, (int) position + length)
+    }
+
+    def "reads across block boundaries match the file"() {
+        given:
+        def input = cached(new BlockCache(4 * BLOCK_SIZE, BLOCK_SIZE), readAheadBlocks)
+
+        expect:
+        read(input, position, length) == expected(position, length)
+
+        where:
+        position              | length         | readAheadBlocks
+        0                     | 10             | 0
+        BLOCK_SIZE - 3        | 10             | 0
+        BLOCK_SIZE - 3        | 3 * BLOCK_SIZE | 0
+        BLOCK_SIZE - 3        | 3 * BLOCK_SIZE | 2
+        5 * BLOCK_SIZE        | BLOCK_SIZE     | 2
+        FILE_LENGTH - 310     | 310            | 0
+        FILE_LENGTH - 310     | 310            | 2
+        0                     | FILE_LENGTH    | 4
+    }
+
+    def "byte by byte reads match the file up to the end of the last partial block"() {
+        given:
+        def input = cached(new BlockCache(4 * BLOCK_SIZE, BLOCK_SIZE), 2)
+        def bytes = new byte[FILE_LENGTH]
+
+        when:
+        for (int i = 0; i < FILE_LENGTH; i++) {
+            bytes[i] = input.readByte()
+        }
+
+        then:
+        bytes == data
+        input.filePointer == FILE_LENGTH
+
+        when:
+        input.readByte()
+
+        then:
+        thrown(EOFException)
+    }
+
+    def "slices read from their offset"() {
+        given:
+        def input = cached(new BlockCache(4 * BLOCK_SIZE, BLOCK_SIZE))
+        def slice = input.slice("slice", BLOCK_SIZE - 100, 3 * BLOCK_SIZE)
+        def nested = slice.slice("nested", 500, BLOCK_SIZE)
+
+        expect:
+        slice.length() == 3 * BLOCK_SIZE
+        read(slice, 0, 3 * BLOCK_SIZE) == expected(BLOCK_SIZE - 100, 3 * BLOCK_SIZE)
+        read(slice, 1000, 50) == expected(BLOCK_SIZE - 100 + 1000, 50)
+        read(nested, 0, BLOCK_SIZE) == expected(BLOCK_SIZE - 100 + 500, BLOCK_SIZE)
+
+        when:
+        slice.seek(3 * BLOCK_SIZE)
+        slice.readByte()
+
+        then:
+        thrown(EOFException)
+
+        when:
+        slice.seek(3 * BLOCK_SIZE + 1)
+
+        then:
+        thrown(EOFException)
+    }
+
+    def "clones start at the position of the input and move independently"() {
+        given:
+        def input = cached(new BlockCache(4 * BLOCK_SIZE, BLOCK_SIZE))
+        input.seek(BLOCK_SIZE + 7)
+
+        when:
+        def clone = input.clone()
+        def cloneBytes = new byte[2 * BLOCK_SIZE]
+        clone.readBytes(cloneBytes, 0, cloneBytes.length)
+
+        then:
+        clone.filePointer == 3 * BLOCK_SIZE + 7
+        cloneBytes == expected(BLOCK_SIZE + 7, 2 * BLOCK_SIZE)
+        input.filePointer == BLOCK_SIZE + 7
+        input.readByte() == data[BLOCK_SIZE + 7]
+    }
+
+    def "evicted slots are reused for other blocks without mixing up their contents"() {
+        given: 'room for three of the eleven blocks'
+        def blockCache = new BlockCache(3 * BLOCK_SIZE, BLOCK_SIZE)
+        def input = cached(blockCache)
+        def positions = (0..<FILE_LENGTH).step(BLOCK_SIZE.intdiv(2))
+
+        when:
+        def matches = [1, 2].collect {
+            positions.every { position ->
+                def length = Math.min(BLOCK_SIZE, FILE_LENGTH - position)
+                read(input, position, length) == expected(position, length)
+            }
+        }
+
+        then:
+        matches == [true, true]
+        blockCache.evictions.get() > 0
+        blockCache.misses.get() == 2 * 11
+
+        when: 'an input on the same file reads the blocks still cached'
+        def hits = blockCache.hits.get()
+        def other = cached(blockCache)
+
+        then:
+        read(other, FILE_LENGTH - 300, 300) == expected(FILE_LENGTH - 300, 300)
+        blockCache.hits.get() == hits + 1
+    }
+
+    def "concurrent clones read the right bytes"() {
+        given:
+        def input = cached(new BlockCache(3 * BLOCK_SIZE, BLOCK_SIZE), 2)
+        def executor = Executors.newFixedThreadPool(8)
+
+        when:
+        def results = executor.invokeAll((0..<8).collect { thread ->
+            { ->
+                def clone = input.clone()
+                def random = new Random(thread)
+                (0..<200).every {
+                    def position = random.nextInt(FILE_LENGTH)
+                    def length = random.nextInt(Math.min(3 * BLOCK_SIZE, FILE_LENGTH - position) + 1)
+                    read(clone, position, length) == expected(position, length)
+                }
+            } as Callable<Boolean>
+        })*.get()
+
+        then:
+        results.every()
+
+        cleanup:
+        executor.shutdown()
+    }
+
+    def "the direct memory limit the cache is capped against comes from the JVM options"() {
+        expect:
+        DirectoryFactory.directMemoryLimit(arguments, 1000) == limit
+
+        where:
+        arguments                                                    | limit
+        []                                                           | 1000
+        ['-Xmx1g']                                                   | 1000
+        ['-XX:MaxDirectMemorySize=4096']                             | 4096
+        ['-XX:MaxDirectMemorySize=64m']                              | 64 * 1024 * 1024
+        ['-XX:MaxDirectMemorySize=1G']                               | 1024 * 1024 * 1024
+        ['-XX:MaxDirectMemorySize=2k', '-XX:MaxDirectMemorySize=3k'] | 3 * 1024
+    }
+}
@@ -0,0 +1,116 @@
+package dev.arseny.service
+
+import org.apache.lucene.index.Term
+import org.apache.lucene.search.MatchAllDocsQuery
+import org.apache.lucene.search.TermQuery
+import spock.lang.*
+
+import java.nio.file.Files
+
+class DocumentExporterTest extends Specification {
+    def indexName = "export-" + UUID.randomUUID()
+    def writerService = new IndexWriterService(directoryFactory: new DirectoryFactory())
+    def pipeline = new IndexingPipeline(indexWriterService: writerService, mappingService: new MappingService())
+    def searcherService = new IndexSearcherService(queryResultCache: new QueryResultCache(),
+            directoryFactory: new DirectoryFactory(), hotQueries: new HotQueries())
+
+    def cleanup() {
+        searcherService.closeAll()
+        writerService.closeAll()
+        pipeline.shutdown()
+    }
+
+    private index(String... payloads) {
+        pipeline.index(payloads as List, new Metrics().start("index"))
+    }
+
+    private exportPage(String cursor, query = new MatchAllDocsQuery()) {
+        def searcher = cursor != null
+                ? searcherService.acquire(indexName, DocumentExporter.generation(cursor))
+                : searcherService.acquire(indexName)
+        try {
+            DocumentExporter.export(searcher, query, ['uuid'], 4, cursor)
+        } finally {
+            searcherService.release(searcher)
+        }
+    }
+
+    def "an export continues on the commit it started on"() {
+        given:
+        def expected = (0..<10).collect { '{"uuid":"' + it + '"}' }
+        index("""{"indexName": "$indexName", "documents": [${expected.join(',')}]}""")
+
+        when:
+        def page = exportPage(null)
+        def lines = page.body.readLines()
+        index("""{"indexName": "$indexName", "documents": [{"uuid": "0", "name": "again"}, {"uuid": "10"}]}""",
+                """{"indexName": "$indexName", "forceMerge": 1}""")
+        searcherService.requestRefresh(indexName)
+        while (page.nextCursor != null) {
+            page = exportPage(page.nextCursor)
+            lines += page.body.readLines()
+        }
+
+        then: 'documents merged, replaced or added since the first page are neither repeated nor added'
+        lines.size() == expected.size()
+        lines as Set == expected as Set
+    }
+
+    def "an export with local replicas continues on the commit it started on from EFS"() {
+        given:
+        def replicaDirectory = Files.createTempDirectory("replicas")
+        searcherService.localReplica = true
+        searcherService.replicaDirectory = replicaDirectory.toString() + "/"
+        def expected = (0..<10).collect { '{"uuid":"' + it + '"}' }
+        index("""{"indexName": "$indexName", "documents": [${expected.join(',')}]}""")
+
+        when:
+        def page = exportPage(null)
+        def lines = page.body.readLines()
+        index("""{"indexName": "$indexName", "documents": [{"uuid": "0", "name": "again"}, {"uuid": "10"}]}""",
+                """{"indexName": "$indexName", "forceMerge": 1}""")
+        searcherService.requestRefresh(indexName)
+        while (page.nextCursor != null) {
+            page = exportPage(page.nextCursor)
+            lines += page.body.readLines()
+        }
+
+        then: 'the replica only holds the latest commit, the pages after the first read theirs from EFS'
+        Files.exists(replicaDirectory.resolve(indexName))
+        lines.size() == expected.size()
+        lines as Set == expected as Set
+
+        cleanup:
+        searcherService.closeAll()
+        replicaDirectory.toFile().deleteDir()
+    }
+
+    def "the last page has no cursor"() {
+        given:
+        index("""{"indexName": "$indexName", "documents": [{"uuid": "1"}, {"uuid": "2"}]}""")
+
+        when:
+        def page = exportPage(null, new TermQuery(new Term('uuid', '2')))
+
+        then:
+        page.documents == 1
+        page.nextCursor == null
+    }
+
+    def "cursors of deleted commits and invalid cursors are rejected"() {
+        given:
+        index("""{"indexName": "$indexName", "documents": [{"uuid": "1"}]}""")
+
+        when:
+        searcherService.acquire(indexName, 12345)
+
+        then:
+        thrown(IllegalArgumentException)
+
+        when:
+        DocumentExporter.generation('invalid')
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
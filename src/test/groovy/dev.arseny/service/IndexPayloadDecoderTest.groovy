@@ -0,0 +1,117 @@
+package dev.arseny.service
+
+import dev.arseny.model.FieldMapping
+import dev.arseny.model.IndexMapping
+import dev.arseny.model.MappingType
+import spock.lang.*
+
+class IndexPayloadDecoderTest extends Specification {
+    def mapping = new IndexMapping(fields: [popularity: new FieldMapping(type: MappingType.LONG, indexed: false, stored: false)])
+    def decoder = new IndexPayloadDecoder({ indexName -> new DocumentBuilder(mapping) })
+
+    def "a header is followed by newline-delimited documents"() {
+        when:
+        def batches = decoder.decode([
+                '{"indexName": "books"}',
+                '{"uuid": "1", "name": "Foundation"}',
+                '{"uuid": "2", "name": "I, Robot"}',
+                '{"name": "The Gods Themselves"}',
+        ].join('\n'))
+
+        then:
+        batches.size() == 1
+        batches[0].indexName == 'books'
+        batches[0].changes.keySet() == ['1', '2'] as Set
+        batches[0].documents.size() == 1
+        batches[0].size() == 3
+    }
+
+    def "documents before the indexName are decoded once it is known"() {
+        when:
+        def batches = decoder.decode('{"documents": [{"uuid": "1"}, {"name": "Foundation"}], "indexName": "books"}'
+                + '{"indexName": "authors", "documents": [{"uuid": "3"}]}')
+
+        then:
+        batches*.indexName == ['books', 'authors']
+        batches[0].changes.keySet() == ['1'] as Set
+        batches[0].documents[0].get('name') == 'Foundation'
+        batches[1].changes.keySet() == ['3'] as Set
+    }
+
+    def "the last write of a uuid wins"() {
+        when:
+        def batch = decoder.decode('''{"indexName": "books", "documents": [
+                {"uuid": "1", "name": "Foundation"},
+                {"uuid": "1", "name": "Foundation and Empire"},
+                {"uuid": "2", "name": "I, Robot"},
+                {"uuid": "2", "deleted": true},
+                {"uuid": "3", "deleted": true},
+                {"uuid": "3", "name": "Nemesis"}]}''')[0]
+
+        then:
+        batch.size() == 6
+        batch.changes.keySet() == ['1', '2', '3'] as Set
+        batch.changes['1'].get('name') == 'Foundation and Empire'
+        batch.changes.containsKey('2')
+        batch.changes['2'] == null
+        batch.changes['3'].get('name') == 'Nemesis'
+    }
+
+    def "updates after a write of the uuid go into its document"() {
+        when:
+        def batch = decoder.decode('''{"indexName": "books",
+                "updates": [{"uuid": "1", "popularity": 7}, {"uuid": "2", "popularity": 3}, {"uuid": "3", "popularity": 5}],
+                "documents": [{"uuid": "1", "name": "Foundation", "popularity": 1}, {"uuid": "2", "deleted": true}]}''')[0]
+
+        then: 'updates apply after the documents of a request, wherever they are in it'
+        batch.changes['1'].getFields('popularity').length == 1
+        batch.changes['1'].getField('popularity').numericValue() == 7
+        batch.changes['2'] == null
+        batch.updates.keySet() == ['3'] as Set
+        batch.updates['3']['popularity'].numericValue() == 5
+        batch.size() == 5
+    }
+
+    def "only numeric doc values fields that are neither indexed nor stored are updated"() {
+        when:
+        def batch = decoder.decode('{"indexName": "books", "updates": [{"uuid": "1", "popularity": 7, "name": "x"}, {"popularity": 1}]}')[0]
+
+        then:
+        batch.updates['1'].keySet() == ['popularity'] as Set
+        batch.size() == 1
+    }
+
+    def "the payload size is accounted to the first request of a message"() {
+        given:
+        def payload = '{"indexName": "books", "documents": []}{"indexName": "authors", "documents": []}'
+
+        when:
+        def batches = decoder.decode(payload)
+
+        then:
+        batches*.payloadBytes == [payload.length(), 0]
+    }
+
+    def "maintenance commands are read with the request"() {
+        when:
+        def batch = decoder.decode('{"indexName": "books", "forceMerge": 1, "snapshot": "backup", "deleteAll": true}')[0]
+
+        then:
+        batch.hasCommands()
+        batch.forceMergeMaxSegments == 1
+        batch.snapshot == 'backup'
+        batch.deleteAll
+    }
+
+    def "invalid payloads are rejected"() {
+        when:
+        decoder.decode(payload)
+
+        then:
+        thrown(RuntimeException)
+
+        where:
+        payload << ['{"documents": []}', '[{"indexName": "books"}]', '{"indexName": "books", "documents": {}}',
+                    '{"indexName": "books", "forceMerge": 0}']
+    }
+}
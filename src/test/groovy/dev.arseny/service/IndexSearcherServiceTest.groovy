@@ -0,0 +1,147 @@
+package dev.arseny.service
+
+import org.apache.lucene.index.Term
+import org.apache.lucene.search.MatchAllDocsQuery
+import org.apache.lucene.search.Query
+import org.apache.lucene.search.TermQuery
+import spock.lang.*
+import spock.util.concurrent.PollingConditions
+
+import java.nio.file.Files
+import java.util.concurrent.CountDownLatch
+
+class IndexSearcherServiceTest extends Specification {
+    def indexName = "searcher-" + UUID.randomUUID()
+    def writerService = new IndexWriterService(directoryFactory: new DirectoryFactory(), softDeletes: true,
+            softDeletesRetentionMillis: 60 * 60 * 1000)
+    def pipeline = new IndexingPipeline(indexWriterService: writerService, mappingService: new MappingService())
+    def searcherService = new IndexSearcherService(queryResultCache: new QueryResultCache(),
+            directoryFactory: new DirectoryFactory(), hotQueries: new HotQueries())
+
+    def cleanup() {
+        searcherService.closeAll()
+        writerService.closeAll()
+        pipeline.shutdown()
+    }
+
+    private index(String payload) {
+        pipeline.index([payload], new Metrics().start("index"))
+    }
+
+    def "soft deleted documents are hidden from searches and counted as deleted"() {
+        given:
+        index("""{"indexName": "$indexName", "documents": [{"uuid": "1"}, {"uuid": "2"}, {"uuid": "3"}]}""")
+        index("""{"indexName": "$indexName", "documents": [{"uuid": "1", "name": "again"}, {"uuid": "2", "deleted": true}]}""")
+
+        when:
+        def stats = searcherService.stats(indexName)
+
+        then: 'the replaced and the deleted document are kept for the retention window'
+        stats.numDocs == 2
+        stats.maxDoc == 4
+        stats.deletedDocs == 2
+        stats.deletedRatio == 0.5d
+
+        when:
+        def searcher = searcherService.acquire(indexName)
+        def counts
+        try {
+            counts = [new MatchAllDocsQuery(), new TermQuery(new Term('uuid', '1')), new TermQuery(new Term('uuid', '2'))]
+                    .collect { searcher.count(it) }
+        } finally {
+            searcherService.release(searcher)
+        }
+
+        then:
+        counts == [2, 1, 0]
+    }
+
+    private count() {
+        def searcher = searcherService.acquire(indexName)
+        try {
+            searcher.count(new MatchAllDocsQuery())
+        } finally {
+            searcherService.release(searcher)
+        }
+    }
+
+    def "queries keep the current searcher while a new commit is warmed in the background"() {
+        given: 'warming that waits until the test lets it finish'
+        def warming = new CountDownLatch(1)
+        def finishWarming = new CountDownLatch(1)
+        searcherService.hotQueries = new HotQueries() {
+            @Override
+            List<Query> top(String name, int count) {
+                warming.countDown()
+                finishWarming.await()
+                []
+            }
+        }
+        searcherService.refreshPolicy = SearcherRefreshPolicy.EVERY_REQUEST
+        index("""{"indexName": "$indexName", "documents": [{"uuid": "1"}]}""")
+        count()
+        index("""{"indexName": "$indexName", "documents": [{"uuid": "2"}]}""")
+
+        when:
+        def counts = [count()]
+        warming.await()
+        counts << count()
+        finishWarming.countDown()
+
+        then:
+        counts == [1, 1]
+        new PollingConditions(timeout: 5).eventually {
+            assert count() == 2
+        }
+    }
+
+    def "a requested refresh is waited for"() {
+        given:
+        searcherService.refreshPolicy = SearcherRefreshPolicy.EXPLICIT
+        index("""{"indexName": "$indexName", "documents": [{"uuid": "1"}]}""")
+        count()
+        index("""{"indexName": "$indexName", "documents": [{"uuid": "2"}]}""")
+
+        expect:
+        count() == 1
+
+        when:
+        searcherService.requestRefresh(indexName)
+
+        then:
+        count() == 2
+    }
+
+    def "local replicas are kept within their own storage budget"() {
+        given:
+        def otherIndex = "searcher-" + UUID.randomUUID()
+        def replicas = Files.createTempDirectory("replicas")
+        def documents = (0..<1000).collect { """{"uuid": "$it", "name": "some text $it"}""" }.join(',')
+        index("""{"indexName": "$indexName", "documents": [$documents]}""")
+        index("""{"indexName": "$otherIndex", "documents": [$documents]}""")
+        searcherService.localReplica = true
+        searcherService.replicaDirectory = replicas.toString()
+
+        when: 'room for one replica, while the searcher cache has room for both'
+        count()
+        def indexBytes = searcherService.stats(indexName).sizeInBytes
+        searcherService.replicaMaxBytes = (indexBytes * 3).intdiv(2)
+        def searcher = searcherService.acquire(otherIndex)
+        searcherService.release(searcher)
+
+        then:
+        Files.exists(replicas.resolve(otherIndex))
+        !Files.exists(replicas.resolve(indexName))
+
+        when: 'an index larger than the budget'
+        searcherService.closeAll()
+        searcherService.replicaMaxBytes = indexBytes.intdiv(2)
+
+        then: 'is read from EFS'
+        count() == 1000
+        !Files.exists(replicas.resolve(indexName))
+
+        cleanup:
+        replicas.toFile().deleteDir()
+    }
+}
@@ -0,0 +1,149 @@
+package dev.arseny.service
+
+import org.apache.lucene.document.Document
+import org.apache.lucene.document.Field
+import org.apache.lucene.document.StringField
+import org.apache.lucene.index.DirectoryReader
+import org.apache.lucene.index.IndexWriter
+import org.apache.lucene.index.SoftDeletesDirectoryReaderWrapper
+import org.apache.lucene.index.Term
+import org.apache.lucene.store.FSDirectory
+import spock.lang.*
+
+import java.nio.file.Files
+import java.nio.file.Paths
+import java.nio.file.attribute.FileTime
+
+class IndexWriterServiceTest extends Specification {
+    def indexName = "writer-" + UUID.randomUUID()
+
+    private writerService(boolean softDeletes) {
+        new IndexWriterService(directoryFactory: new DirectoryFactory(), softDeletes: softDeletes,
+                softDeletesRetentionMillis: 60 * 60 * 1000)
+    }
+
+    private static document(String uuid) {
+        def document = new Document()
+        document.add(new StringField("uuid", uuid, Field.Store.YES))
+        document
+    }
+
+    private write(IndexWriterService writerService, Closure changes) {
+        changes(writerService.getIndexWriter(indexName))
+        writerService.commit(indexName)
+        writerService.closeAll()
+    }
+
+    private softDeletesField() {
+        def directory = FSDirectory.open(Paths.get(IndexConstants.LUCENE_INDEX_ROOT_DIRECTORY + indexName))
+        try {
+            IndexWriterService.softDeletesField(directory)
+        } finally {
+            directory.close()
+        }
+    }
+
+    private counts() {
+        def directory = FSDirectory.open(Paths.get(IndexConstants.LUCENE_INDEX_ROOT_DIRECTORY + indexName))
+        def reader = new SoftDeletesDirectoryReaderWrapper(DirectoryReader.open(directory), IndexConstants.SOFT_DELETES_FIELD)
+        try {
+            [reader.numDocs(), reader.maxDoc()]
+        } finally {
+            reader.close()
+            directory.close()
+        }
+    }
+
+    def "soft deletes can be turned off and on again for an index that has them"() {
+        when:
+        write(writerService(true)) { writer ->
+            writer.addDocument(document("1"))
+            writer.addDocument(document("2"))
+            writer.softUpdateDocument(new Term("uuid", "1"), document("1"), IndexWriterService.softDeleteField())
+        }
+
+        then: 'the replaced document is kept but hidden'
+        counts() == [2, 3]
+        softDeletesField() == IndexConstants.SOFT_DELETES_FIELD
+
+        when:
+        write(writerService(false)) { writer ->
+            writer.updateDocument(new Term("uuid", "2"), document("2"))
+            writer.addDocument(document("3"))
+        }
+
+        then: 'the writer opens and soft deleted documents stay hidden'
+        counts()[0] == 3
+
+        when:
+        write(writerService(true)) { writer ->
+            writer.softUpdateDocument(new Term("uuid", "3"), document("3"), IndexWriterService.softDeleteField())
+        }
+
+        then:
+        counts()[0] == 3
+    }
+
+    def "indexes without soft deletes have no soft deletes field"() {
+        when:
+        write(writerService(false)) { writer ->
+            writer.addDocument(document("1"))
+            writer.updateDocument(new Term("uuid", "1"), document("1"))
+        }
+
+        then:
+        softDeletesField() == null
+        counts()[0] == 1
+    }
+
+    def "a batch is committed before the pipeline returns"() {
+        given:
+        def writerService = writerService(false)
+        def pipeline = new IndexingPipeline(indexWriterService: writerService, mappingService: new MappingService())
+
+        when:
+        pipeline.index(["""{"indexName": "$indexName", "documents": [{"uuid": "1"}, {"uuid": "2"}]}""".toString()],
+                new Metrics().start("index"))
+
+        then: 'a reader sees the documents while the writer is still open'
+        counts() == [2, 2]
+
+        cleanup:
+        writerService.closeAll()
+        pipeline.shutdown()
+    }
+
+    def "a writer whose lock was taken over is discarded without touching the index"() {
+        given:
+        def writerService = writerService(false)
+        def writer = writerService.getIndexWriter(indexName)
+        writer.addDocument(document("1"))
+        writerService.commit(indexName)
+        writer.addDocument(document("2"))
+        writer.flush()
+        def indexPath = Paths.get(IndexConstants.LUCENE_INDEX_ROOT_DIRECTORY + indexName)
+        def files = indexPath.toFile().list() as Set
+
+        when: 'another container deletes the lock as stale and creates its own'
+        def lockFile = indexPath.resolve(IndexWriter.WRITE_LOCK_NAME)
+        Files.delete(lockFile)
+        Files.createFile(lockFile)
+        Files.setLastModifiedTime(lockFile, FileTime.fromMillis(System.currentTimeMillis() + 1000))
+        writerService.writerIdleTimeoutMillis = -1
+        writerService.closeIdleWriters()
+
+        then:
+        indexPath.toFile().list() as Set == files
+        !writer.isOpen()
+
+        when: 'the lock is released, so this container can take it back'
+        def newWriter = writerService.getIndexWriter(indexName)
+
+        then:
+        !newWriter.is(writer)
+        counts() == [1, 1]
+
+        cleanup:
+        writerService.closeAll()
+    }
+}
@@ -0,0 +1,168 @@
+package dev.arseny.service
+
+import dev.arseny.model.FieldMapping
+import dev.arseny.model.MappingType
+import org.apache.lucene.index.DirectoryReader
+import org.apache.lucene.store.FSDirectory
+import spock.lang.*
+
+import java.nio.file.Files
+import java.nio.file.Paths
+
+class IndexingPipelineTest extends Specification {
+    def indexName = "pipeline-" + UUID.randomUUID()
+    def writerService = new IndexWriterService(directoryFactory: new DirectoryFactory())
+    def mappingService = new MappingService()
+    def pipeline = new IndexingPipeline(indexWriterService: writerService, mappingService: mappingService)
+
+    def cleanup() {
+        writerService.closeAll()
+        pipeline.shutdown()
+    }
+
+    private index(String... payloads) {
+        pipeline.index(payloads as List, new Metrics().start("index"))
+    }
+
+    // The live documents of the index as "uuid/name", with their popularity.
+    private popularity() {
+        def documents = [:]
+        def directory = FSDirectory.open(Paths.get(IndexConstants.LUCENE_INDEX_ROOT_DIRECTORY + indexName))
+        def reader = DirectoryReader.open(directory)
+        try {
+            for (leaf in reader.leaves()) {
+                def popularity = leaf.reader().getNumericDocValues('popularity')
+                def liveDocs = leaf.reader().liveDocs
+                for (int doc = 0; doc < leaf.reader().maxDoc(); doc++) {
+                    if (liveDocs == null || liveDocs.get(doc)) {
+                        def document = leaf.reader().storedFields().document(doc)
+                        documents["${document.get('uuid')}/${document.get('name')}".toString()] =
+                                popularity != null && popularity.advanceExact(doc) ? popularity.longValue() : null
+                    }
+                }
+            }
+        } finally {
+            reader.close()
+            directory.close()
+        }
+        documents
+    }
+
+    // The live documents of the index as "uuid/name".
+    private documents() {
+        def documents = []
+        def directory = FSDirectory.open(Paths.get(IndexConstants.LUCENE_INDEX_ROOT_DIRECTORY + indexName))
+        def reader = DirectoryReader.open(directory)
+        try {
+            for (leaf in reader.leaves()) {
+                def liveDocs = leaf.reader().liveDocs
+                for (int doc = 0; doc < leaf.reader().maxDoc(); doc++) {
+                    if (liveDocs == null || liveDocs.get(doc)) {
+                        def document = leaf.reader().storedFields().document(doc)
+                        documents << "${document.get('uuid')}/${document.get('name')}".toString()
+                    }
+                }
+            }
+        } finally {
+            reader.close()
+            directory.close()
+        }
+        documents as Set
+    }
+
+    def "the last write of a uuid across the messages of a batch wins"() {
+        given:
+        index("""{"indexName": "$indexName", "documents": [{"uuid": "1", "name": "old"}, {"uuid": "2", "name": "two"}]}""")
+
+        when:
+        index("""{"indexName": "$indexName", "documents": [{"uuid": "1", "name": "new"}, {"uuid": "2", "deleted": true}]}""",
+                """{"indexName": "$indexName", "documents": [{"uuid": "3", "deleted": true}, {"uuid": "3", "name": "three"}]}""",
+                """{"indexName": "$indexName", "documents": [{"uuid": "1", "name": "newer"}, {"name": "no uuid"}]}""")
+
+        then:
+        documents() == ['1/newer', '3/three', 'null/no uuid'] as Set
+    }
+
+    def "documents with a uuid replace the indexed one instead of adding a copy"() {
+        when:
+        index("""{"indexName": "$indexName", "documents": [{"uuid": "1", "name": "first"}]}""")
+        index("""{"indexName": "$indexName", "documents": [{"uuid": "1", "name": "second"}]}""")
+
+        then:
+        documents() == ['1/second'] as Set
+    }
+
+    def "doc values updates apply after the writes of the messages before them"() {
+        given:
+        mappingService.updateMapping(indexName, [popularity: new FieldMapping(type: MappingType.LONG, indexed: false, stored: false)])
+        index("""{"indexName": "$indexName", "documents": [
+                {"uuid": "1", "name": "old"}, {"uuid": "2", "name": "two"}, {"uuid": "3", "name": "three", "popularity": 1}]}""")
+
+        when:
+        index("""{"indexName": "$indexName", "documents": [{"uuid": "1", "name": "new"}, {"uuid": "2", "deleted": true}]}""",
+                """{"indexName": "$indexName", "updates": [
+                        {"uuid": "1", "popularity": 9}, {"uuid": "2", "popularity": 4}, {"uuid": "3", "popularity": 8}]}""",
+                """{"indexName": "$indexName", "documents": [{"uuid": "4", "name": "four"}]}""",
+                """{"indexName": "$indexName", "updates": [{"uuid": "4", "popularity": 2}]}""",
+                """{"indexName": "$indexName", "documents": [{"uuid": "4", "name": "four again"}]}""")
+
+        then: 'updates of a written uuid go into its document, deleted and rewritten uuids lose them'
+        popularity() == ['1/new': 9L, '3/three': 8L, '4/four again': null]
+    }
+
+    def "commands see the writes of the messages before them"() {
+        when:
+        index("""{"indexName": "$indexName", "documents": [{"uuid": "1", "name": "one"}]}""",
+                """{"indexName": "$indexName", "deleteAll": true}""",
+                """{"indexName": "$indexName", "documents": [{"uuid": "2", "name": "two"}]}""")
+
+        then:
+        documents() == ['2/two'] as Set
+    }
+
+    def "keyword values longer than the term limit are skipped instead of failing the document"() {
+        given:
+        mappingService.updateMapping(indexName, [tag: new FieldMapping(MappingType.KEYWORD)])
+
+        when:
+        index("""{"indexName": "$indexName", "documents": [{"uuid": "1", "name": "long", "tag": "${'x' * 40000}"}]}""")
+
+        then:
+        documents() == ['1/long'] as Set
+    }
+
+    def "a message that can't be decoded is reported without failing the others"() {
+        when:
+        def failed = index("""{"indexName": "$indexName", "documents": [{"uuid": "1", "name": "one"}]}""",
+                '{not json',
+                """{"indexName": "$indexName", "documents": [{"uuid": "2", "name": "two"}]}""")
+
+        then:
+        failed == [1] as Set
+        documents() == ['1/one', '2/two'] as Set
+    }
+
+    def "an index that fails is rolled back and only its messages are reported"() {
+        given: 'a mapping that changed behind the documents already indexed'
+        def otherIndex = "pipeline-" + UUID.randomUUID()
+        index("""{"indexName": "$indexName", "documents": [{"uuid": "0", "name": "zero", "year": "1951"}]}""")
+        Files.write(Paths.get(IndexConstants.LUCENE_INDEX_ROOT_DIRECTORY + indexName, 'mapping.json'),
+                '{"fields": {"year": {"type": "long"}}}'.bytes)
+
+        when:
+        def failed = index("""{"indexName": "$indexName", "documents": [{"name": "no uuid"}]}""",
+                """{"indexName": "$indexName", "documents": [{"uuid": "1", "name": "one", "year": 1952}]}""",
+                """{"indexName": "$otherIndex", "documents": [{"uuid": "1", "name": "other"}]}""")
+
+        then:
+        failed == [0, 1] as Set
+        documents() == ['0/zero'] as Set
+
+        when: 'the next batch opens a new writer'
+        failed = index("""{"indexName": "$indexName", "documents": [{"uuid": "2", "name": "two"}]}""")
+
+        then:
+        failed.isEmpty()
+        documents() == ['0/zero', '2/two'] as Set
+    }
+}
@@ -0,0 +1,113 @@
+package dev.arseny.service
+
+import dev.arseny.model.FieldMapping
+import dev.arseny.model.MappingType
+import spock.lang.*
+
+class MappingServiceTest extends Specification {
+    def indexName = "mapping-" + UUID.randomUUID()
+    def mappingService = new MappingService()
+
+    private index(String payload) {
+        def writerService = new IndexWriterService(directoryFactory: new DirectoryFactory())
+        def pipeline = new IndexingPipeline(indexWriterService: writerService, mappingService: mappingService)
+        pipeline.index([payload], new Metrics().start("index"))
+        writerService.closeAll()
+        pipeline.shutdown()
+    }
+
+    def "mapped fields can't change their type"() {
+        given:
+        mappingService.updateMapping(indexName, [year: new FieldMapping(MappingType.LONG)])
+
+        when:
+        mappingService.updateMapping(indexName, [year: new FieldMapping(MappingType.KEYWORD)])
+
+        then:
+        def e = thrown(IllegalArgumentException)
+        e.message == 'Field year is already mapped as long'
+
+        when:
+        def mapping = mappingService.updateMapping(indexName, [year: new FieldMapping(MappingType.LONG)])
+
+        then:
+        mapping.fields.year.type == MappingType.LONG
+    }
+
+    def "mapped fields can't change their flags"() {
+        given:
+        mappingService.updateMapping(indexName, [year: new FieldMapping(MappingType.LONG)])
+
+        when:
+        mappingService.updateMapping(indexName, [year: fieldMapping])
+
+        then:
+        def e = thrown(IllegalArgumentException)
+        e.message == message
+
+        where:
+        fieldMapping                                                    | message
+        new FieldMapping(type: MappingType.LONG, indexed: false)        | 'Field year is already mapped with indexed true'
+        new FieldMapping(type: MappingType.LONG, stored: false)         | 'Field year is already mapped with stored true'
+        new FieldMapping(type: MappingType.LONG, docValues: false)      | 'Field year is already mapped with docValues true'
+    }
+
+    def "unmapped fields of indexed documents keep the text type"() {
+        given:
+        index("""{"indexName": "$indexName", "documents": [{"uuid": "1", "author": "Isaac Asimov"}]}""")
+
+        when:
+        mappingService.updateMapping(indexName, [author: fieldMapping])
+
+        then:
+        def e = thrown(IllegalArgumentException)
+        e.message == 'Field author is already indexed with different options'
+
+        where:
+        fieldMapping << [new FieldMapping(MappingType.KEYWORD), new FieldMapping(MappingType.LONG),
+                         new FieldMapping(type: MappingType.TEXT, indexed: false)]
+    }
+
+    def "unmapped fields of indexed documents can be mapped as text"() {
+        given:
+        index("""{"indexName": "$indexName", "documents": [{"uuid": "1", "author": "Isaac Asimov"}]}""")
+
+        when:
+        mappingService.updateMapping(indexName, [author: new FieldMapping(type: MappingType.TEXT, stored: false),
+                                                 year  : new FieldMapping(MappingType.LONG)])
+
+        then:
+        mappingService.getMapping(indexName).fields.keySet() == ['author', 'year'] as Set
+    }
+
+    def "fields need a type and the uuid can't be mapped"() {
+        when:
+        mappingService.updateMapping(indexName, fields)
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        fields << [[year: new FieldMapping(type: null)], [uuid: new FieldMapping(MappingType.KEYWORD)]]
+    }
+
+    def "fields must be indexed like the latest commit indexes them"() {
+        given:
+        mappingService.updateMapping(indexName, [tag: new FieldMapping(MappingType.KEYWORD)])
+        index("""{"indexName": "$indexName", "documents": [{"uuid": "1", "tag": "sci-fi"}]}""")
+        // A mapping that was lost or written by an older version.
+        new File(IndexConstants.LUCENE_INDEX_ROOT_DIRECTORY + indexName, MappingService.MAPPING_FILE_NAME).delete()
+
+        when:
+        mappingService.updateMapping(indexName, [tag: new FieldMapping(type: MappingType.KEYWORD, docValues: false)])
+
+        then:
+        thrown(IllegalArgumentException)
+
+        when:
+        mappingService.updateMapping(indexName, [tag: new FieldMapping(MappingType.KEYWORD)])
+
+        then:
+        mappingService.getMapping(indexName).fields.tag.type == MappingType.KEYWORD
+    }
+}
@@ -0,0 +1,89 @@
+package dev.arseny.service
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import dev.arseny.model.FieldMapping
+import dev.arseny.model.IndexMapping
+import dev.arseny.model.MappingType
+import org.apache.lucene.queryparser.classic.ParseException
+import spock.lang.*
+
+class QueryParserServiceTest extends Specification {
+    def mapper = new ObjectMapper()
+    def parserService = new QueryParserService()
+    def mapping = new IndexMapping(fields: [year: new FieldMapping(MappingType.LONG), tag: new FieldMapping(MappingType.KEYWORD)])
+
+    private parse(String queryDsl) {
+        parserService.parse('books', mapping, mapper.readTree(queryDsl))
+    }
+
+    def "query strings are parsed with the mapping of the index"() {
+        expect:
+        parserService.parse('books', mapping, queryText).toString() == query
+
+        where:
+        queryText             | query
+        'name:Foundation'     | 'name:foundation'
+        'tag:Sci-Fi'          | 'tag:Sci-Fi'
+        'asimov'              | 'content:asimov'
+        'year:[1950 TO 1959]' | 'IndexOrDocValuesQuery(indexQuery=year:[1950 TO 1959], dvQuery=year:[1950 TO 1959])'
+    }
+
+    def "parsed queries are reused until the mapping changes"() {
+        given:
+        def query = parserService.parse('books', mapping, 'name:foundation')
+
+        expect:
+        parserService.parse('books', mapping, 'name:foundation').is(query)
+        !parserService.parse('authors', mapping, 'name:foundation').is(query)
+        !parserService.parse('books', new IndexMapping(), 'name:foundation').is(query)
+    }
+
+    def "invalid query strings throw ParseException"() {
+        when:
+        parserService.parse('books', mapping, 'name:(')
+
+        then:
+        thrown(ParseException)
+    }
+
+    def "structured queries compile with the mapping of the index"() {
+        expect:
+        parse(queryDsl).toString() == query
+
+        where:
+        queryDsl                                                         | query
+        '{"term": {"tag": "Sci-Fi"}}'                                    | 'tag:Sci-Fi'
+        '{"match": {"name": "Foundation"}}'                              | 'name:foundation'
+        '{"query_string": {"query": "name:asimov"}}'                     | 'name:asimov'
+        '{"bool": {"must": [{"match": {"name": "a"}}], "filter": [{"term": {"tag": "b"}}]}}' | '+name:a #tag:b'
+        '{"range": {"year": {"gte": 1950, "lt": 1960}}}'                 | 'IndexOrDocValuesQuery(indexQuery=year:[1950 TO 1959], dvQuery=year:[1950 TO 1959])'
+    }
+
+    def "queries that only differ in key order share the parsed query"() {
+        expect:
+        parse('{"bool": {"must": [{"term": {"tag": "a"}}], "boost": 2}}').is(parse('{"bool": {"boost": 2, "must": [{"term": {"tag": "a"}}]}}'))
+    }
+
+    def "invalid structured queries throw IllegalArgumentException"() {
+        when:
+        parse(queryDsl)
+
+        then:
+        def e = thrown(IllegalArgumentException)
+        e.message == message
+
+        where:
+        queryDsl                                            | message
+        '{"nope": {}}'                                      | 'Unknown query type nope'
+        '{"range": {"year": {"gte": "abc"}}}'               | 'Invalid long value for field year: abc'
+        '{"exists": {}}'                                    | 'Expected a value for exists, got null'
+    }
+
+    def "invalid query_string clauses of structured queries throw ParseException"() {
+        when:
+        parse('{"query_string": {"query": "name:("}}')
+
+        then:
+        thrown(ParseException)
+    }
+}
@@ -0,0 +1,61 @@
+package dev.arseny.service
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import dev.arseny.model.IndexMapping
+import dev.arseny.model.QueryRequest
+import spock.lang.*
+
+class QueryResultCacheTest extends Specification {
+    def mapper = new ObjectMapper()
+
+    private key(String request, int size = 10, long readerVersion = 1) {
+        QueryResultCache.key(mapper.readValue(request, QueryRequest), size, readerVersion)
+    }
+
+    def "requests with the same response share a key"() {
+        expect:
+        key(first) == key(second)
+
+        where:
+        first                                                                   | second
+        '{"indexName": "books", "query": "  author:asimov "}'                   | '{"indexName": "books", "query": "author:asimov"}'
+        '{"indexName": "books", "query": "a", "fields": ["uuid", "name"]}'      | '{"indexName": "books", "query": "a", "fields": ["name", "uuid"]}'
+        '{"indexName": "books", "query": {"term": {"tag": "x"}}}'               | '{"indexName": "books", "query": { "term" : { "tag" : "x" } }}'
+        '{"indexName": "books", "query": {"range": {"year": {"gte": 1, "lt": 2}}}}' | '{"indexName": "books", "query": {"range": {"year": {"lt": 2, "gte": 1}}}}'
+    }
+
+    def "requests with different responses have different keys"() {
+        expect:
+        key(first) != key(second)
+
+        where:
+        first                                                      | second
+        '{"indexName": "books", "query": "name:\\"a  b\\""}'       | '{"indexName": "books", "query": "name:\\"a b\\""}'
+        '{"indexName": "books", "query": "a"}'                     | '{"indexName": "authors", "query": "a"}'
+        '{"indexName": "books", "query": "{\\"match_all\\":{}}"}'  | '{"indexName": "books", "query": {"match_all": {}}}'
+        '{"indexName": "books", "query": "a", "searchAfter": "x"}' | '{"indexName": "books", "query": "a"}'
+    }
+
+    def "the reader version and size are part of the key"() {
+        expect:
+        key('{"indexName": "books", "query": "a"}', 10, 1) != key('{"indexName": "books", "query": "a"}', 10, 2)
+        key('{"indexName": "books", "query": "a"}', 10, 1) != key('{"indexName": "books", "query": "a"}', 20, 1)
+    }
+
+    def "results are only returned for the mapping they were computed with"() {
+        given:
+        def cache = new QueryResultCache()
+        def mapping = new IndexMapping()
+        cache.put('books', mapping, 'key', 'body')
+
+        expect:
+        cache.get('key', mapping) == 'body'
+        cache.get('key', new IndexMapping()) == null
+
+        when:
+        cache.invalidate('books')
+
+        then:
+        cache.get('key', mapping) == null
+    }
+}
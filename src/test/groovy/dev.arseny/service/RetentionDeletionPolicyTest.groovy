@@ -0,0 +1,100 @@
+package dev.arseny.service
+
+import groovy.json.JsonSlurper
+import org.apache.lucene.analysis.standard.StandardAnalyzer
+import org.apache.lucene.document.Document
+import org.apache.lucene.document.Field
+import org.apache.lucene.document.StringField
+import org.apache.lucene.index.DirectoryReader
+import org.apache.lucene.index.IndexWriter
+import org.apache.lucene.index.IndexWriterConfig
+import org.apache.lucene.store.FSDirectory
+import spock.lang.*
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+
+class RetentionDeletionPolicyTest extends Specification {
+    def path = Files.createTempDirectory("retention")
+
+    def cleanup() {
+        path.toFile().deleteDir()
+    }
+
+    // The generations of the commits left on disk.
+    private static generations(Path indexPath) {
+        def directory = FSDirectory.open(indexPath)
+        try {
+            DirectoryReader.listCommits(directory)*.generation
+        } finally {
+            directory.close()
+        }
+    }
+
+    def "old commits are deleted once they are neither among the last ones nor recent"() {
+        given:
+        def now = System.currentTimeMillis()
+        def directory = FSDirectory.open(path)
+        def writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer())
+                .setIndexDeletionPolicy(new RetentionDeletionPolicy(path, keepCount, keepMillis)))
+
+        when: 'a commit is made for each age'
+        ages.eachWithIndex { age, i ->
+            def document = new Document()
+            document.add(new StringField('uuid', i.toString(), Field.Store.NO))
+            writer.addDocument(document)
+            writer.setLiveCommitData([(RetentionDeletionPolicy.COMMIT_TIMESTAMP_KEY): (now - age).toString()].entrySet())
+            writer.commit()
+        }
+
+        then:
+        generations(path) == kept
+
+        cleanup:
+        writer.close()
+        directory.close()
+
+        where:
+        keepCount | keepMillis | ages                                 || kept
+        2         | 0          | [0, 0, 0, 0]                         || [3, 4]
+        1         | 60_000     | [0, 0, 0, 0]                         || [1, 2, 3, 4]
+        1         | 60_000     | [600_000, 600_000, 0, 0]             || [3, 4]
+        3         | 60_000     | [600_000, 600_000, 600_000, 600_000] || [2, 3, 4]
+    }
+
+    def "snapshots pin their commit across writer reopens until they are released"() {
+        given:
+        def indexName = "retention-" + UUID.randomUUID()
+        def indexPath = Paths.get(IndexConstants.LUCENE_INDEX_ROOT_DIRECTORY + indexName)
+        def writerService = new IndexWriterService(directoryFactory: new DirectoryFactory(),
+                commitRetentionCount: 1, commitRetentionMillis: 0)
+        def pipeline = new IndexingPipeline(indexWriterService: writerService, mappingService: new MappingService())
+        def index = { String payload -> pipeline.index([payload], new Metrics().start("index")) }
+
+        when:
+        index("""{"indexName": "$indexName", "documents": [{"uuid": "1"}]}""")
+        index("""{"indexName": "$indexName", "snapshot": "backup"}""")
+        def pinned = new JsonSlurper().parse(indexPath.resolve(RetentionDeletionPolicy.SNAPSHOTS_FILE_NAME).toFile()).backup as long
+        index("""{"indexName": "$indexName", "documents": [{"uuid": "2"}]}""")
+        writerService.closeAll()
+        index("""{"indexName": "$indexName", "documents": [{"uuid": "3"}]}""")
+
+        then: 'the reopened writer read the snapshot back'
+        def commits = generations(indexPath)
+        commits.size() == 2
+        commits.contains(pinned)
+
+        when:
+        index("""{"indexName": "$indexName", "releaseSnapshot": "backup"}""")
+        index("""{"indexName": "$indexName", "documents": [{"uuid": "4"}]}""")
+
+        then: 'the released commit is deleted with the next commit'
+        generations(indexPath).size() == 1
+        !generations(indexPath).contains(pinned)
+
+        cleanup:
+        writerService.closeAll()
+        pipeline.shutdown()
+    }
+}